@@ -0,0 +1,186 @@
+package server;
+
+import utils.Protocol;
+import utils.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The real server, started inside the benchmark JVM on its usual port.
+ * <p>
+ * The server keeps its data in relative paths, so it works in the current directory,
+ * which the build points at {@code target/bench-work}. Every trial starts from a fresh
+ * tree there, generated the same way each time, and JMH forks a JVM per trial, so one
+ * server per JVM is all it takes. Per-command logging is turned down to warnings so it
+ * does not end up in the benchmark output.
+ */
+final class BenchServer {
+    static final int PORT = 12345;
+    static final String USER = "bench";
+    static final String PASSWORD = "bench";
+    static final Path DATA = Paths.get("res/data");
+    static final Path HOME = Paths.get("res/server_files", USER);
+
+    private static boolean started;
+
+    private BenchServer() {
+    }
+
+    /** Clears the working tree and writes {@code users} accounts ({@code user<i>} / {@code pw<i>}) plus the bench user. */
+    static void prepare(int users) throws IOException {
+        if (started) {
+            throw new IllegalStateException("Server already running in this JVM");
+        }
+        deleteTree(Paths.get("res"));
+        Files.createDirectories(DATA);
+        Files.createDirectories(HOME);
+        List<User> accounts = new ArrayList<>(users + 1);
+        accounts.add(new User(USER, PASSWORD));
+        for (int i = 0; i < users; i++) {
+            accounts.add(new User("user" + i, "pw" + i));
+        }
+        try (ObjectOutputStream out = new ObjectOutputStream(Files.newOutputStream(DATA.resolve("users.txt")))) {
+            out.writeObject(accounts);
+        }
+    }
+
+    /** Starts the server and waits until it accepts sessions and has finished indexing the prepared files. */
+    static synchronized void start() throws IOException, InterruptedException {
+        if (started) {
+            return;
+        }
+        started = true;
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Thread server = new Thread(() -> Server.main(new String[0]), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        for (int attempt = 0; ; attempt++) {
+            try (Session session = Session.connect(USER, PASSWORD)) {
+                while (session.search("bench").getMessage().contains("still being built")) {
+                    Thread.sleep(100);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt == 600) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** A client connection over loopback, speaking the wire protocol directly. */
+    static final class Session implements Closeable {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        private Session() throws IOException {
+            socket = new Socket("127.0.0.1", PORT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            Protocol.writeHandshake(out);
+            out.flush();
+            expectOk(Protocol.readReply(in));
+        }
+
+        static Session open() throws IOException {
+            return new Session();
+        }
+
+        /** A session already logged in as {@code user}. */
+        static Session connect(String user, String password) throws IOException {
+            Session session = new Session();
+            expectOk(session.login(user, password));
+            return session;
+        }
+
+        /** Logs in, reading the home folder and session token that follow a successful reply. */
+        Protocol.Reply login(String user, String password) throws IOException {
+            out.writeByte(Protocol.OP_LOGIN);
+            Protocol.writeString(out, user);
+            Protocol.writeString(out, password);
+            out.flush();
+            Protocol.Reply reply = Protocol.readReply(in);
+            if (reply.isOk()) {
+                Protocol.readString(in);
+                Protocol.readString(in);
+            }
+            return reply;
+        }
+
+        Protocol.Reply logout() throws IOException {
+            out.writeByte(Protocol.OP_EXIT);
+            out.flush();
+            return Protocol.readReply(in);
+        }
+
+        Protocol.Reply search(String query) throws IOException {
+            out.writeByte(Protocol.OP_SEARCH);
+            Protocol.writeString(out, query);
+            out.writeInt(1);
+            out.flush();
+            Protocol.Reply reply = Protocol.readReply(in);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Protocol.readString(in);
+                in.readLong();
+            }
+            return reply;
+        }
+
+        static Protocol.Reply expectOk(Protocol.Reply reply) throws IOException {
+            if (!reply.isOk()) {
+                throw new IOException("Server said: " + reply.getMessage());
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Protocol;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** {@code listCurrentDirectory} on a folder of {@code entries} files: one page, and every page. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class ListingBenchmark {
+    private static final int PAGE = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private BenchServer.Session session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchServer.prepare(0);
+        Path folder = Files.createDirectory(BenchServer.HOME.resolve("big"));
+        for (int i = 0; i < entries; i++) {
+            Files.write(folder.resolve(String.format("file%06d.txt", i)), new byte[i % 1024]);
+        }
+        BenchServer.start();
+        session = BenchServer.Session.connect(BenchServer.USER, BenchServer.PASSWORD);
+        session.out.writeByte(Protocol.OP_MOVE_TO);
+        Protocol.writeString(session.out, "big");
+        session.out.flush();
+        BenchServer.Session.expectOk(Protocol.readReply(session.in));
+        Protocol.readString(session.in);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public String firstPageByName() throws IOException {
+        return page(Protocol.LIST_SORT_NAME, "", PAGE);
+    }
+
+    /** Size order cannot start from the sorted names, so every entry has to be looked at. */
+    @Benchmark
+    public String firstPageBySize() throws IOException {
+        return page(Protocol.LIST_SORT_SIZE, "", PAGE);
+    }
+
+    @Benchmark
+    public int wholeFolder() throws IOException {
+        int pages = 0;
+        String cursor = "";
+        do {
+            cursor = page(Protocol.LIST_SORT_NAME, cursor, 1000);
+            pages++;
+        } while (!cursor.isEmpty());
+        return pages;
+    }
+
+    /** Requests one page and reads it; returns the cursor of the next one. */
+    private String page(byte sort, String cursor, int limit) throws IOException {
+        session.out.writeByte(Protocol.OP_LIST_DIRECTORY);
+        session.out.writeByte(sort);
+        session.out.writeBoolean(false);
+        Protocol.writeString(session.out, "");
+        Protocol.writeString(session.out, cursor);
+        session.out.writeInt(limit);
+        session.out.flush();
+        BenchServer.Session.expectOk(Protocol.readReply(session.in));
+        int count = session.in.readInt();
+        for (int i = 0; i < count; i++) {
+            Protocol.readString(session.in);
+            session.in.readByte();
+            session.in.readLong();
+            session.in.readLong();
+        }
+        return Protocol.readString(session.in);
+    }
+}
@@ -0,0 +1,97 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path bookkeeping after renames and uploads, which is what {@code updatePaths} used to
+ * do by rewriting the whole paths file. A chain of {@code depth} folders with a few
+ * files at each level sits next to {@link #BACKGROUND} unrelated paths, so the cost
+ * of touching one subtree can be told apart from the size of the whole index. Changes
+ * are appended to the real change log, compactions included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class PathIndexBenchmark {
+    private static final int BACKGROUND = 100_000;
+    private static final int FILES_PER_LEVEL = 8;
+
+    @Param({"16", "64", "256"})
+    public int depth;
+
+    private PathIndex index;
+    private Path root;
+    private Path chain;
+    private Path renamed;
+    private Path deepest;
+    private boolean moved;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Path work = Paths.get("pathindex");
+        BenchServer.deleteTree(work);
+        root = Files.createDirectories(work.resolve("files"));
+        index = new PathIndex(work.resolve("paths.txt"), work.resolve("paths.log"), root);
+        index.load();
+
+        List<Path> paths = new ArrayList<>();
+        for (int i = 0; i < BACKGROUND; i++) {
+            paths.add(root.resolve("other" + i % 100).resolve("file" + i));
+        }
+        chain = root.resolve("chain");
+        renamed = root.resolve("renamed");
+        Path level = chain;
+        for (int d = 0; d < depth; d++) {
+            paths.add(level);
+            for (int f = 0; f < FILES_PER_LEVEL; f++) {
+                paths.add(level.resolve("file" + f));
+            }
+            level = level.resolve("level" + d);
+        }
+        deepest = level.getParent().resolve("new-file");
+        index.addAll(paths);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.close();
+    }
+
+    /** Renames the top of the chain back and forth; every path below it changes. */
+    @Benchmark
+    public int renameTopFolder() {
+        index.move(moved ? renamed : chain, moved ? chain : renamed);
+        moved = !moved;
+        return index.size();
+    }
+
+    /** An upload and a delete at the bottom of the chain. */
+    @Benchmark
+    public boolean addAndRemoveDeepFile() {
+        index.add(deepest);
+        index.remove(deepest);
+        return index.contains(deepest);
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Protocol;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small commands end to end: request, dispatch, reply, over loopback. The concurrent
+ * variant runs the same command from many sessions at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class RoundTripBenchmark {
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchServer.prepare(0);
+        Files.createDirectory(BenchServer.HOME.resolve("sub"));
+        BenchServer.start();
+    }
+
+    /** One logged-in session per benchmark thread. */
+    @State(Scope.Thread)
+    public static class Client {
+        BenchServer.Session session;
+
+        @Setup(Level.Trial)
+        public void connect(RoundTripBenchmark server) throws IOException {
+            session = BenchServer.Session.connect(BenchServer.USER, BenchServer.PASSWORD);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            session.close();
+        }
+    }
+
+    /** A stat of a missing file: about the least work a command can do. */
+    @Benchmark
+    public Protocol.Reply partialSize(Client client) throws IOException {
+        return partialSize(client.session);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Protocol.Reply partialSize16Sessions(Client client) throws IOException {
+        return partialSize(client.session);
+    }
+
+    /** Into a folder and back out again, two round trips. */
+    @Benchmark
+    public String changeDirectory(Client client) throws IOException {
+        BenchServer.Session session = client.session;
+        session.out.writeByte(Protocol.OP_MOVE_TO);
+        Protocol.writeString(session.out, "sub");
+        session.out.flush();
+        BenchServer.Session.expectOk(Protocol.readReply(session.in));
+        Protocol.readString(session.in);
+        session.out.writeByte(Protocol.OP_BACK);
+        session.out.flush();
+        BenchServer.Session.expectOk(Protocol.readReply(session.in));
+        return Protocol.readString(session.in);
+    }
+
+    private static Protocol.Reply partialSize(BenchServer.Session session) throws IOException {
+        session.out.writeByte(Protocol.OP_PARTIAL_SIZE);
+        Protocol.writeString(session.out, "missing.bin");
+        session.out.flush();
+        return Protocol.readReply(session.in);
+    }
+}
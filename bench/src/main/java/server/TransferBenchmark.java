@@ -0,0 +1,101 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Compression;
+import utils.FileTransfer;
+import utils.Protocol;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole-file upload and download of {@code size} bytes over loopback.
+ * <p>
+ * The upload sends the same content every time: the server still receives, hashes and
+ * writes all of it, then files it against the blob it already has, so the blob store
+ * does not grow over a run. No compression is negotiated, so downloads take the raw,
+ * zero-copy path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class TransferBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private BenchServer.Session session;
+    private byte[] content;
+    private byte[] sink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchServer.prepare(0);
+        content = new byte[size];
+        new Random(42).nextBytes(content);
+        Files.write(BenchServer.HOME.resolve("download.bin"), content);
+        BenchServer.start();
+        session = BenchServer.Session.connect(BenchServer.USER, BenchServer.PASSWORD);
+        sink = new byte[FileTransfer.CHUNK_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    @Benchmark
+    public Protocol.Reply uploadFile() throws IOException {
+        session.out.writeByte(Protocol.OP_UPLOAD);
+        Protocol.writeString(session.out, "upload.bin");
+        session.out.writeLong(size);
+        session.out.writeBoolean(false);
+        session.out.flush();
+        Protocol.Reply reply = Protocol.readReply(session.in);
+        if (reply.getStatus() != Protocol.STATUS_CONTINUE) {
+            throw new IOException("Server said: " + reply.getMessage());
+        }
+        for (int offset = 0; offset < size; offset += FileTransfer.CHUNK_SIZE) {
+            int length = Math.min(FileTransfer.CHUNK_SIZE, size - offset);
+            session.out.writeInt(length);
+            session.out.write(content, offset, length);
+        }
+        session.out.writeInt(0);
+        session.out.flush();
+        return BenchServer.Session.expectOk(Protocol.readReply(session.in));
+    }
+
+    @Benchmark
+    public long downloadFile() throws IOException {
+        session.out.writeByte(Protocol.OP_DOWNLOAD);
+        Protocol.writeString(session.out, BenchServer.USER + "/download.bin");
+        session.out.flush();
+        BenchServer.Session.expectOk(Protocol.readReply(session.in));
+        long count = session.in.readLong();
+        if (session.in.readByte() != Compression.NONE) {
+            throw new IOException("Unexpected compressed download");
+        }
+        for (long remaining = count; remaining > 0; ) {
+            int length = (int) Math.min(sink.length, remaining);
+            session.in.readFully(sink, 0, length);
+            remaining -= length;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Protocol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/** Login and registration round trips against a user store of {@code users} accounts. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class UserBenchmark {
+    @Param({"10000", "100000"})
+    public int users;
+
+    private BenchServer.Session session;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchServer.prepare(users);
+        BenchServer.start();
+        session = BenchServer.Session.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        session.close();
+    }
+
+    /** A successful login of one of the accounts, then a logout to get back to the guest state. */
+    @Benchmark
+    public Protocol.Reply authenticate() throws IOException {
+        int i = next++ % users;
+        BenchServer.Session.expectOk(session.login("user" + i, "pw" + i));
+        return session.logout();
+    }
+
+    @Benchmark
+    public Protocol.Reply authenticateWrongPassword() throws IOException {
+        int i = next++ % users;
+        return session.login("user" + i, "wrong");
+    }
+
+    /** A new account each time, so every call appends to the registration journal. */
+    @Benchmark
+    public Protocol.Reply registerUser() throws IOException {
+        session.out.writeByte(Protocol.OP_REGISTER);
+        Protocol.writeString(session.out, "new" + next++);
+        Protocol.writeString(session.out, "pw");
+        session.out.flush();
+        return BenchServer.Session.expectOk(Protocol.readReply(session.in));
+    }
+}
@@ -0,0 +1,191 @@
+package client;
+
+import utils.Compression;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs one command against the server and exits, for scripts and cron jobs:
+ * <pre>
+ *   java client.Cli --user bob --password secret put report.pdf notes.txt
+ *   java client.Cli --user bob --password secret --cd docs ls
+ * </pre>
+ * The password may also come from the {@code FILE_SERVER_PASSWORD} environment variable.
+ * The {@code token} command prints a session token; later runs given {@code --token}
+ * resume that session (in the folder it was left in) instead of logging in.
+ * Exits with 1 if the server refused the command, 2 on bad usage or a connection error.
+ */
+public class Cli {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: client.Cli [--host HOST] [--port PORT] (--user NAME [--password PASSWORD] | --token TOKEN) [--cd FOLDER] COMMAND [ARGS]",
+            "Commands (folder names are relative to your home, or to --cd):",
+            "  register                      create the account, then exit",
+            "  token                         print a token for --token on later runs",
+            "  ls [PREFIX]                   list the folder",
+            "  put LOCAL...                  upload files into the folder",
+            "  get REMOTE [LOCAL]            download, e.g. bob/docs/a.txt",
+            "  mkdir NAME | rmdir NAME       create or delete (recursively) a folder",
+            "  mvdir NAME DEST | cpdir NAME DEST | renamedir NAME NEW",
+            "  rm PATH | mv PATH DEST | cp PATH DEST | rename PATH NEW",
+            "                                file commands take server paths, e.g. res/server_files/bob/a.txt",
+            "  cat PATH [FIRST [COUNT]]      print lines of a text file",
+            "  search WORDS...",
+            "  stats                         server statistics (admins only)");
+
+    public static void main(String[] args) {
+        String host = "localhost";
+        int port = 12345;
+        String user = null;
+        String password = System.getenv("FILE_SERVER_PASSWORD");
+        String folder = null;
+        String token = null;
+        List<String> command = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (command.isEmpty() ? args[i] : "") {
+                    case "--host":
+                        host = args[++i];
+                        break;
+                    case "--port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--user":
+                        user = args[++i];
+                        break;
+                    case "--password":
+                        password = args[++i];
+                        break;
+                    case "--token":
+                        token = args[++i];
+                        break;
+                    case "--cd":
+                        folder = args[++i];
+                        break;
+                    default:
+                        command.add(args[i]);
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            usage();
+        }
+        if (command.isEmpty() || token == null && (user == null || password == null)) {
+            usage();
+        }
+
+        byte[] codecs = Compression.parseList(System.getProperty("client.compression", "fast,deflate"));
+        try (Session session = Session.connect(host, port, codecs)) {
+            if (command.get(0).equals("register")) {
+                System.out.println(session.register(user, password));
+                return;
+            }
+            if (token != null) {
+                session.resume(token);
+            } else {
+                session.login(user, password);
+            }
+            if (folder != null) {
+                session.moveTo(folder);
+            }
+            run(session, command.get(0), command.subList(1, command.size()));
+        } catch (NumberFormatException e) {
+            usage();
+        } catch (ServerException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Error: " + e);
+            System.exit(2);
+        }
+    }
+
+    private static void run(Session session, String name, List<String> args) throws IOException {
+        switch (name) {
+            case "ls":
+                for (Session.Entry entry : session.list(args.isEmpty() ? "" : args.get(0))) {
+                    System.out.printf("%s %12d  %tF %<tR  %s%n", entry.isDirectory() ? "d" : "-",
+                            entry.getSize(), entry.getModified(), entry.getName());
+                }
+                break;
+            case "put":
+                requireArgs(args, 1);
+                for (String local : args) {
+                    long sent = session.upload(Paths.get(local));
+                    System.out.println(local + ": " + sent + " bytes sent");
+                }
+                break;
+            case "get":
+                requireArgs(args, 1);
+                Path target = Paths.get(args.size() > 1 ? args.get(1) : Paths.get(args.get(0)).getFileName().toString());
+                System.out.println(args.get(0) + ": " + session.download(args.get(0), target) + " bytes");
+                break;
+            case "mkdir":
+                System.out.println(session.createDirectory(arg(args, 0)));
+                break;
+            case "rmdir":
+                System.out.println(session.deleteDirectory(arg(args, 0)));
+                break;
+            case "renamedir":
+                System.out.println(session.renameDirectory(arg(args, 0), arg(args, 1)));
+                break;
+            case "cpdir":
+                System.out.println(session.copyDirectory(arg(args, 0), arg(args, 1)));
+                break;
+            case "mvdir":
+                System.out.println(session.moveDirectory(arg(args, 0), arg(args, 1)));
+                break;
+            case "rm":
+                System.out.println(session.deleteFile(arg(args, 0)));
+                break;
+            case "rename":
+                System.out.println(session.renameFile(arg(args, 0), arg(args, 1)));
+                break;
+            case "cp":
+                System.out.println(session.copyFile(arg(args, 0), arg(args, 1)));
+                break;
+            case "mv":
+                System.out.println(session.moveFile(arg(args, 0), arg(args, 1)));
+                break;
+            case "cat":
+                long first = args.size() > 1 ? Long.parseLong(args.get(1)) : 0;
+                int count = args.size() > 2 ? Integer.parseInt(args.get(2)) : 1000;
+                session.view(arg(args, 0), first, count).forEach(System.out::println);
+                break;
+            case "search":
+                requireArgs(args, 1);
+                for (Session.Entry result : session.search(String.join(" ", args), 100)) {
+                    System.out.printf("%12d  %s%n", result.getSize(), result.getName());
+                }
+                break;
+            case "token":
+                System.out.println(session.token());
+                break;
+            case "stats":
+                System.out.print(session.stats());
+                break;
+            default:
+                System.err.println("Unknown command: " + name);
+                usage();
+        }
+    }
+
+    private static String arg(List<String> args, int index) {
+        requireArgs(args, index + 1);
+        return args.get(index);
+    }
+
+    private static void requireArgs(List<String> args, int count) {
+        if (args.size() < count) {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+}
@@ -1,24 +1,59 @@
 package client;
 
-import utils.User;
+import utils.Compression;
+import utils.ContentHash;
+import utils.DeltaSync;
+import utils.FileTransfer;
+import utils.Protocol;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 
 public class Client {
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 12345;
+    private static final int VIEW_PAGE_LINES = 40;
+    private static final int LIST_PAGE_ENTRIES = 50;
+    private static final int SEARCH_RESULTS = 20;
+    /** Indexed by the {@code Protocol.JOB_*} state codes. */
+    private static final String[] JOB_STATES = {"queued", "running", "done", "failed", "cancelled"};
+    /** Codecs to offer the server, best first, e.g. {@code -Dclient.compression=deflate}; {@code none} disables it. */
+    private static final byte[] OFFERED_COMPRESSION = Compression.parseList(System.getProperty("client.compression", "fast,deflate"));
+    /** Files of at least {@code client.parallelThreshold} bytes move over {@code client.streams} connections at once. */
+    private static final int STREAMS = Integer.getInteger("client.streams", 4);
+    private static final long PARALLEL_THRESHOLD = Long.getLong("client.parallelThreshold", 64L * 1024 * 1024);
+    private static byte compression = Compression.NONE;
 
     public static void main(String[] args) {
         try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FileTransfer.CHUNK_SIZE));
              Scanner scanner = new Scanner(System.in)) {
 
+            Protocol.writeHandshake(out);
+            Protocol.Reply greeting = readReply(in, out);
+            if (!greeting.isOk()) {
+                System.out.println(greeting.getMessage());
+                return;
+            }
+            negotiateCompression(in, out);
+
             System.out.println("Welcome to the File Management System");
             while (true) {
                 System.out.println("1. Login");
@@ -26,34 +61,60 @@ public class Client {
                 System.out.print("Choose an option: ");
                 String choice = scanner.nextLine();
                 if ("1".equals(choice)) {
-                    out.writeObject("login");
                     authenticate(scanner, in, out);
                     handleRegularUser(scanner, in, out);
                     break;
                 } else if ("2".equals(choice)) {
-                    out.writeObject("register");
                     register(scanner, in, out);
                 } else {
                     System.out.println("Invalid choice. Try again.");
                 }
             }
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void authenticate(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void negotiateCompression(DataInputStream in, DataOutputStream out) throws IOException {
+        if (OFFERED_COMPRESSION.length == 0) {
+            return;
+        }
+        out.writeByte(Protocol.OP_COMPRESSION);
+        out.writeByte(OFFERED_COMPRESSION.length);
+        out.write(OFFERED_COMPRESSION);
+        if (readReply(in, out).isOk()) {
+            compression = in.readByte();
+        }
+    }
+
+    private static Protocol.Reply readReply(DataInputStream in, DataOutputStream out) throws IOException {
+        out.flush();
+        return Protocol.readReply(in);
+    }
+
+    /** Reads the final reply of a long operation, printing the progress replies that come before it. */
+    private static Protocol.Reply readFinalReply(DataInputStream in, DataOutputStream out) throws IOException {
+        Protocol.Reply reply = readReply(in, out);
+        while (reply.getStatus() == Protocol.STATUS_PROGRESS) {
+            System.out.println(reply.getMessage());
+            reply = Protocol.readReply(in);
+        }
+        return reply;
+    }
+
+    private static void authenticate(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         while (true) {
             System.out.println("Enter username:");
             String username = scanner.nextLine();
             System.out.println("Enter password:");
             String password = scanner.nextLine();
-            User user = new User(username, password);
-            out.writeObject(user);
+            out.writeByte(Protocol.OP_LOGIN);
+            Protocol.writeString(out, username);
+            Protocol.writeString(out, password);
 
-            String response = (String) in.readObject();
-            if ("success".equals(response)) {
+            Protocol.Reply reply = readReply(in, out);
+            if (reply.isOk()) {
                 System.out.println("Authentication successful");
                 return;
             } else {
@@ -62,26 +123,31 @@ public class Client {
         }
     }
 
-    private static void register(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void register(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter username for registration:");
         String username = scanner.nextLine();
         System.out.println("Enter password for registration:");
         String password = scanner.nextLine();
-        User newUser = new User(username, password);
-        out.writeObject(newUser);
+        out.writeByte(Protocol.OP_REGISTER);
+        Protocol.writeString(out, username);
+        Protocol.writeString(out, password);
 
-        String response = (String) in.readObject();
-        if ("registered".equals(response)) {
+        Protocol.Reply reply = readReply(in, out);
+        if (reply.isOk()) {
             System.out.println("Registration successful. You can now login.");
-        } else if ("exists".equals(response)) {
+        } else if (reply.getStatus() == Protocol.STATUS_EXISTS) {
             System.out.println("Username already exists. Please choose another username.");
+        } else {
+            System.out.println(reply.getMessage());
         }
     }
 
 
-    private static void handleRegularUser(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void handleRegularUser(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         try {
-            String currentDir = (String) in.readObject();
+            String currentDir = Protocol.readString(in);
+            // the session token; this client simply logs in again on a new connection
+            Protocol.readString(in);
             while (true) {
                 System.out.println("Current directory: " + currentDir);
                 System.out.println("Menu:");
@@ -91,38 +157,56 @@ public class Client {
                 System.out.println("4. Manage File");
                 System.out.println("5. Move to");
                 System.out.println("6. Back");
-                System.out.println("7. Exit");
+                System.out.println("7. Resume Upload");
+                System.out.println("8. Resume Download");
+                System.out.println("9. Jobs");
+                System.out.println("10. Search");
+                System.out.println("11. Server Stats");
+                System.out.println("12. Exit");
                 System.out.print("Choose an option: ");
                 String choice = scanner.nextLine();
                 switch (choice) {
                     case "1":
-                        out.writeObject("upload");
                         uploadFile(scanner, in, out);
                         break;
                     case "2":
-                        out.writeObject("download");
                         downloadFile(scanner, in, out, currentDir);
                         break;
                     case "3":
-                        out.writeObject("manage folder");
                         manageFolder(scanner, in, out);
                         break;
                     case "4":
-                        out.writeObject("manage file");
                         manageFile(scanner, in, out);
                         break;
                     case "5":
-                        out.writeObject("move to");
+                        out.writeByte(Protocol.OP_MOVE_TO);
                         moveToDirectory(scanner, in, out);
-                        currentDir = (String) in.readObject();
+                        currentDir = Protocol.readString(in);
                         break;
                     case "6":
-                        out.writeObject("back");
-                        moveBackDirectory(in);
-                        currentDir = (String) in.readObject();
+                        out.writeByte(Protocol.OP_BACK);
+                        moveBackDirectory(in, out);
+                        currentDir = Protocol.readString(in);
                         break;
                     case "7":
-                        out.writeObject("exit");
+                        resumeUpload(scanner, in, out);
+                        break;
+                    case "8":
+                        resumeDownload(scanner, in, out, currentDir);
+                        break;
+                    case "9":
+                        manageJobs(scanner, in, out);
+                        break;
+                    case "10":
+                        searchFiles(scanner, in, out);
+                        break;
+                    case "11":
+                        out.writeByte(Protocol.OP_STATS);
+                        System.out.println(readReply(in, out).getMessage());
+                        break;
+                    case "12":
+                        out.writeByte(Protocol.OP_EXIT);
+                        readReply(in, out);
                         return;
                     default:
                         System.out.println("Invalid choice. Try again.");
@@ -134,7 +218,7 @@ public class Client {
         }
     }
 
-    private static void uploadFile(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void uploadFile(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter the path of the file to upload:");
         String filePath = scanner.nextLine();
         File file = new File(filePath);
@@ -144,55 +228,314 @@ public class Client {
             return;
         }
 
-        byte[] fileData = Files.readAllBytes(file.toPath());
-        out.writeObject(file.getName());
-        out.writeObject(fileData);
-        System.out.println((String) in.readObject());
+        if (STREAMS > 1 && file.length() >= PARALLEL_THRESHOLD) {
+            sendParallelUpload(in, out, file);
+        } else {
+            sendUpload(in, out, file);
+        }
+    }
+
+    /** Sends the file as {@link #STREAMS} byte ranges over as many extra connections; the server checks the hash once all arrived. */
+    private static void sendParallelUpload(DataInputStream in, DataOutputStream out, File file) throws IOException {
+        long size = file.length();
+        out.writeByte(Protocol.OP_PARALLEL_UPLOAD);
+        Protocol.writeString(out, file.getName());
+        out.writeLong(size);
+        out.write(ContentHash.of(file.toPath()));
+        Protocol.Reply reply = readReply(in, out);
+        if (reply.getStatus() != Protocol.STATUS_CONTINUE) {
+            System.out.println(reply.getMessage());
+            return;
+        }
+        String token = Protocol.readString(in);
+        long start = System.nanoTime();
+        try {
+            runParts(size, (partIn, partOut, offset, length) -> {
+                partOut.writeByte(Protocol.OP_UPLOAD_PART);
+                Protocol.writeString(partOut, token);
+                partOut.writeLong(offset);
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    FileTransfer.sendChunks(channel, offset, length, partOut, Compression.NONE);
+                }
+                Protocol.Reply partReply = readReply(partIn, partOut);
+                if (!partReply.isOk()) {
+                    throw new IOException(partReply.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("A part failed: " + e.getMessage());
+        }
+        // committed either way, so the server discards an incomplete upload right away
+        out.writeByte(Protocol.OP_UPLOAD_COMMIT);
+        Protocol.writeString(out, token);
+        System.out.println(readReply(in, out).getMessage() + rate(size, start));
+    }
+
+    private static void receiveParallelDownload(DataInputStream in, DataOutputStream out, String fileName, File file) throws IOException {
+        out.writeByte(Protocol.OP_PARALLEL_DOWNLOAD);
+        Protocol.writeString(out, fileName);
+        Protocol.Reply reply = readReply(in, out);
+        if (!reply.isOk()) {
+            System.out.println(reply.getMessage());
+            return;
+        }
+        String token = Protocol.readString(in);
+        long size = in.readLong();
+        byte[] hash = new byte[ContentHash.LENGTH];
+        in.readFully(hash);
+        if (size < PARALLEL_THRESHOLD) {
+            // Not worth the extra streams and the hash check; the unused transfer holds nothing and expires.
+            out.writeByte(Protocol.OP_DOWNLOAD);
+            Protocol.writeString(out, fileName);
+            receiveDownload(in, out, file, 0);
+            return;
+        }
+
+        Files.createDirectories(file.toPath().toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.truncate(0);
+        }
+        long start = System.nanoTime();
+        PartTask fetch = (partIn, partOut, offset, length) -> {
+            partOut.writeByte(Protocol.OP_DOWNLOAD_PART);
+            Protocol.writeString(partOut, token);
+            partOut.writeLong(offset);
+            partOut.writeLong(length);
+            Protocol.Reply partReply = readReply(partIn, partOut);
+            if (!partReply.isOk()) {
+                throw new IOException(partReply.getMessage());
+            }
+            long count = partIn.readLong();
+            byte codec = partIn.readByte();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.position(offset);
+                if (codec == Compression.NONE) {
+                    FileTransfer.receiveRaw(Channels.newChannel(partIn), channel, count);
+                } else {
+                    FileTransfer.receiveChunks(partIn, channel);
+                }
+            }
+        };
+        runParts(size, fetch);
+        if (!Arrays.equals(hash, ContentHash.of(file.toPath()))) {
+            System.out.println("Checksum mismatch, the downloaded file is damaged.");
+            return;
+        }
+        System.out.println("File downloaded successfully." + rate(size, start));
     }
 
-    private static void downloadFile(Scanner scanner, ObjectInputStream in, ObjectOutputStream out, String currentDir) throws IOException, ClassNotFoundException {
+    private interface PartTask {
+        void run(DataInputStream in, DataOutputStream out, long offset, long length) throws IOException;
+    }
+
+    /**
+     * Splits {@code size} bytes into {@link #STREAMS} chunk-aligned ranges and runs
+     * {@code task} for each on its own connection, all at once.
+     */
+    private static void runParts(long size, PartTask task) throws IOException {
+        long partSize = Math.max(1, (size + STREAMS - 1) / STREAMS);
+        partSize = (partSize + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE * FileTransfer.CHUNK_SIZE;
+        List<Future<?>> parts = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(STREAMS);
+        try {
+            for (long offset = 0; offset < size || offset == 0; offset += partSize) {
+                long from = offset;
+                long length = Math.min(partSize, size - offset);
+                parts.add(pool.submit(() -> {
+                    try (Socket socket = new Socket(SERVER_ADDRESS, SERVER_PORT)) {
+                        DataOutputStream partOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE));
+                        DataInputStream partIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FileTransfer.CHUNK_SIZE));
+                        Protocol.writeHandshake(partOut);
+                        Protocol.Reply greeting = readReply(partIn, partOut);
+                        if (!greeting.isOk()) {
+                            throw new IOException(greeting.getMessage());
+                        }
+                        task.run(partIn, partOut, from, length);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during transfer");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static String rate(long bytes, long startNanos) {
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return String.format(" (%.1f MB in %.2f s, %.1f MB/s)", bytes / 1e6, seconds, bytes / 1e6 / seconds);
+    }
+
+    /**
+     * Announces the file by size and hash. If the server does not already have that
+     * content it returns signatures of its current copy (if any) and only the
+     * changed ranges are sent.
+     */
+    private static void sendUpload(DataInputStream in, DataOutputStream out, File file) throws IOException {
+        byte[] hash = ContentHash.of(file.toPath());
+        out.writeByte(Protocol.OP_UPLOAD_DELTA);
+        Protocol.writeString(out, file.getName());
+        out.writeLong(file.length());
+        out.write(hash);
+
+        Protocol.Reply reply = readReply(in, out);
+        if (reply.getStatus() == Protocol.STATUS_CONTINUE) {
+            DeltaSync.Signatures signatures = DeltaSync.readSignatures(in);
+            long literal;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                literal = DeltaSync.writeDelta(channel, signatures, out, Compression.forFile(compression, file.getName()));
+            }
+            reply = readReply(in, out);
+            if (!signatures.isEmpty()) {
+                System.out.println("Sent " + literal + " of " + file.length() + " bytes.");
+            }
+        }
+        System.out.println(reply.getMessage());
+    }
+
+    private static void resumeUpload(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Enter the path of the file to upload:");
+        String filePath = scanner.nextLine();
+        File file = new File(filePath);
+
+        if (!file.exists() || !file.isFile()) {
+            System.out.println("Invalid file path. Please try again.");
+            return;
+        }
+
+        out.writeByte(Protocol.OP_PARTIAL_SIZE);
+        Protocol.writeString(out, file.getName());
+        long offset = readReply(in, out).isOk() ? in.readLong() : -1;
+        if (offset < 0 || offset > file.length()) {
+            System.out.println("No matching partial upload on server, uploading from the beginning.");
+            sendUpload(in, out, file);
+            return;
+        }
+        System.out.println("Resuming upload at byte " + offset + " of " + file.length());
+        out.writeByte(Protocol.OP_UPLOAD_RANGE);
+        Protocol.writeString(out, file.getName());
+        out.writeLong(offset);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(offset);
+            FileTransfer.sendChunks(channel, out, Compression.forFile(compression, file.getName()));
+        }
+        System.out.println(readReply(in, out).getMessage());
+    }
+
+    private static void downloadFile(Scanner scanner, DataInputStream in, DataOutputStream out, String currentDir) throws IOException {
         System.out.println("Enter the name of the file to download:");
         String fileName = scanner.nextLine();
-        out.writeObject(fileName);
+        if (STREAMS > 1) {
+            receiveParallelDownload(in, out, fileName, new File(currentDir, fileName));
+            return;
+        }
+        out.writeByte(Protocol.OP_DOWNLOAD);
+        Protocol.writeString(out, fileName);
 
-        byte[] fileData = (byte[]) in.readObject();
+        receiveDownload(in, out, new File(currentDir, fileName), 0);
+    }
 
+    private static void resumeDownload(Scanner scanner, DataInputStream in, DataOutputStream out, String currentDir) throws IOException {
+        System.out.println("Enter the name of the file to download:");
+        String fileName = scanner.nextLine();
         File file = new File(currentDir, fileName);
-        Files.write(file.toPath(), fileData);
+        long offset = file.isFile() ? file.length() : 0;
+        System.out.println("Resuming download at byte " + offset);
+
+        out.writeByte(Protocol.OP_DOWNLOAD_RANGE);
+        Protocol.writeString(out, fileName);
+        out.writeLong(offset);
+        out.writeLong(-1);
+
+        receiveDownload(in, out, file, offset);
+    }
 
-        String response = (String) in.readObject();
-        System.out.println(response);
+    private static void receiveDownload(DataInputStream in, DataOutputStream out, File file, long offset) throws IOException {
+        Protocol.Reply reply = readReply(in, out);
+        if (reply.isOk()) {
+            long size = in.readLong();
+            byte codec = in.readByte();
+            FileChannel channel = null;
+            try {
+                Files.createDirectories(file.toPath().getParent());
+                if (offset == 0) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                } else {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    channel.position(offset);
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot write " + file + ": " + e.getMessage());
+            }
+            try {
+                if (codec == Compression.NONE) {
+                    FileTransfer.receiveRaw(Channels.newChannel(in), channel, size);
+                } else {
+                    FileTransfer.receiveChunks(in, channel);
+                }
+            } finally {
+                if (channel != null) channel.close();
+            }
+        }
+        System.out.println(reply.getMessage());
     }
 
 
-    private static void manageFolder(Scanner sc, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void manageFolder(Scanner sc, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Folder Management:");
         System.out.println("1. Create Folder");
         System.out.println("2. Rename Folder");
         System.out.println("3. Delete Folder");
         System.out.println("4. View List");
-        System.out.println("5. Back");
+        System.out.println("5. Copy Folder");
+        System.out.println("6. Move Folder");
+        System.out.println("7. Upload Local Folder");
+        System.out.println("8. Delete Files Matching");
+        System.out.println("9. Back");
         System.out.print("Choose an option: ");
         String choice = sc.nextLine();
         switch (choice) {
             case "1":
-                out.writeObject("create");
+                out.writeByte(Protocol.OP_CREATE_DIRECTORY);
                 createDirectory(sc, in, out);
                 break;
             case "2":
-                out.writeObject("rename");
+                out.writeByte(Protocol.OP_RENAME_DIRECTORY);
                 renameDirectory(sc, in, out);
                 break;
             case "3":
-                out.writeObject("delete");
+                out.writeByte(Protocol.OP_DELETE_DIRECTORY);
                 deleteDirectory(sc, in, out);
                 break;
             case "4":
-                out.writeObject("view folder");
-                listCurrentDirectory(in);
+                listCurrentDirectory(sc, in, out);
                 break;
             case "5":
-                out.writeObject("Back");
+                out.writeByte(Protocol.OP_COPY_DIRECTORY);
+                copyOrMoveDirectory(sc, in, out);
+                break;
+            case "6":
+                out.writeByte(Protocol.OP_MOVE_DIRECTORY);
+                copyOrMoveDirectory(sc, in, out);
+                break;
+            case "7":
+                uploadFolder(sc, in, out);
+                break;
+            case "8":
+                deleteMatching(sc, in, out);
+                break;
+            case "9":
                 break;
             default:
                 System.out.println("Invalid choice. Try again.");
@@ -200,64 +543,312 @@ public class Client {
         }
     }
 
-    private static void createDirectory(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    /** Uploads a local folder tree into the current folder as batches, so it costs a few round trips in all. */
+    private static void uploadFolder(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Enter the path of the local folder to upload:");
+        Path root = Paths.get(scanner.nextLine());
+        if (!Files.isDirectory(root)) {
+            System.out.println("Invalid folder path. Please try again.");
+            return;
+        }
+        Path base = root.toAbsolutePath().normalize().getParent();
+        List<BatchItem> items = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(root)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                String name = base.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+                if (Files.isDirectory(path)) {
+                    items.add(new BatchItem(Protocol.BATCH_MKDIR, name, null));
+                } else if (Files.isRegularFile(path)) {
+                    items.add(new BatchItem(Protocol.BATCH_UPLOAD, name, path));
+                }
+            }
+        }
+        int failed = 0;
+        long[] sent = new long[2];
+        for (int from = 0; from < items.size(); from += Protocol.MAX_BATCH_ITEMS) {
+            failed += sendBatch(in, out, items.subList(from, Math.min(items.size(), from + Protocol.MAX_BATCH_ITEMS)), sent);
+        }
+        System.out.println("Uploaded " + items.size() + " entries, " + failed + " failed; sent "
+                + sent[0] + " files (" + sent[1] + " bytes), the rest were already on the server.");
+    }
+
+    private static void deleteMatching(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Enter a pattern of files to delete, relative to the current folder (e.g. **/*.tmp):");
+        String glob = scanner.nextLine();
+        sendBatch(in, out, List.of(new BatchItem(Protocol.BATCH_DELETE, glob, null)), new long[2]);
+    }
+
+    /**
+     * Sends one {@link Protocol#OP_BATCH}: the manifest, then the content of the files the
+     * server asks for. Prints failed items and returns how many there were; adds the
+     * files and bytes sent to {@code sent}.
+     */
+    private static int sendBatch(DataInputStream in, DataOutputStream out, List<BatchItem> items, long[] sent) throws IOException {
+        out.writeByte(Protocol.OP_BATCH);
+        out.writeInt(items.size());
+        for (BatchItem item : items) {
+            out.writeByte(item.kind);
+            Protocol.writeString(out, item.name);
+            if (item.kind == Protocol.BATCH_UPLOAD) {
+                out.writeLong(Files.size(item.local));
+                out.write(ContentHash.of(item.local));
+            }
+        }
+        Protocol.Reply reply = readReply(in, out);
+        if (reply.getStatus() != Protocol.STATUS_CONTINUE) {
+            System.out.println(reply.getMessage());
+            return items.size();
+        }
+        int needed = in.readInt();
+        int[] indexes = new int[needed];
+        for (int i = 0; i < needed; i++) {
+            indexes[i] = in.readInt();
+        }
+        for (int index : indexes) {
+            BatchItem item = items.get(index);
+            try (FileChannel channel = FileChannel.open(item.local, StandardOpenOption.READ)) {
+                sent[1] += FileTransfer.sendChunks(channel, out, Compression.forFile(compression, item.name));
+            }
+            sent[0]++;
+        }
+
+        reply = readReply(in, out);
+        int count = in.readInt();
+        int failed = 0;
+        for (int i = 0; i < count; i++) {
+            Protocol.Reply result = Protocol.readReply(in);
+            if (!result.isOk()) {
+                failed++;
+                System.out.println(items.get(i).name + ": " + result.getMessage());
+            } else if (items.get(i).kind == Protocol.BATCH_DELETE) {
+                System.out.println(result.getMessage());
+            }
+        }
+        System.out.println(reply.getMessage());
+        return failed;
+    }
+
+    private static final class BatchItem {
+        final byte kind;
+        final String name;
+        final Path local;
+
+        BatchItem(byte kind, String name, Path local) {
+            this.kind = kind;
+            this.name = name;
+            this.local = local;
+        }
+    }
+
+    private static void createDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter the name of the directory to create:");
         String dirName = scanner.nextLine();
-        out.writeObject(dirName);
-        System.out.println((String) in.readObject());
+        Protocol.writeString(out, dirName);
+        System.out.println(readReply(in, out).getMessage());
     }
 
-    private static void renameDirectory(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void renameDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.print("Enter the current name of the directory: ");
         String oldDirName = scanner.nextLine();
         System.out.print("Enter the new name of the directory: ");
         String newDirName = scanner.nextLine();
-        out.writeObject(oldDirName);
-        out.writeObject(newDirName);
-        System.out.println((String) in.readObject());
+        Protocol.writeString(out, oldDirName);
+        Protocol.writeString(out, newDirName);
+        System.out.println(readReply(in, out).getMessage());
     }
 
-    private static void deleteDirectory(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void deleteDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter the name of the directory to delete: ");
         String dirName = scanner.nextLine();
-        out.writeObject(dirName);
+        Protocol.writeString(out, dirName);
 
-        String serverResponse = (String) in.readObject();
-        System.out.println(serverResponse);
+        Protocol.Reply reply = readReply(in, out);
+        System.out.println(reply.getMessage());
 
-        if ("Directory containing content. Continue? Y/n".equals(serverResponse)) {
+        if (reply.getStatus() == Protocol.STATUS_CONFIRM) {
             String response = scanner.nextLine();
-            out.writeObject(response);
-            System.out.println((String) in.readObject());
-        } else {
-            System.out.println(serverResponse);
+            out.writeBoolean("Y".equalsIgnoreCase(response));
+            printJobReply(readReply(in, out), in);
+        }
+    }
+
+    private static void copyOrMoveDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Enter the name of the directory:");
+        String dirName = scanner.nextLine();
+        System.out.println("Enter the destination directory (relative to the current one):");
+        String destination = scanner.nextLine();
+        Protocol.writeString(out, dirName);
+        Protocol.writeString(out, destination);
+        printJobReply(readReply(in, out), in);
+    }
+
+    /** Long folder operations run as server jobs; the reply then carries the job id. */
+    private static void printJobReply(Protocol.Reply reply, DataInputStream in) throws IOException {
+        System.out.println(reply.getMessage());
+        if (reply.getStatus() == Protocol.STATUS_ACCEPTED) {
+            in.readLong();
+            System.out.println("It keeps running in the background; follow it from the Jobs menu.");
         }
     }
 
-    private static void moveToDirectory(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void searchFiles(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Enter search words (file names and text content):");
+        String query = scanner.nextLine();
+        out.writeByte(Protocol.OP_SEARCH);
+        Protocol.writeString(out, query);
+        out.writeInt(SEARCH_RESULTS);
+        Protocol.Reply reply = readReply(in, out);
+        System.out.println(reply.getMessage());
+        if (!reply.isOk()) {
+            return;
+        }
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String path = Protocol.readString(in);
+            long size = in.readLong();
+            System.out.printf("%12d  %s%n", size, path);
+        }
+    }
+
+    private static void manageJobs(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println("Jobs:");
+        System.out.println("1. List Jobs");
+        System.out.println("2. Watch Job");
+        System.out.println("3. Cancel Job");
+        System.out.println("4. Back");
+        System.out.print("Choose an option: ");
+        String choice = scanner.nextLine();
+        switch (choice) {
+            case "1":
+                out.writeByte(Protocol.OP_JOB_LIST);
+                listJobs(in, out);
+                break;
+            case "2":
+                out.writeByte(Protocol.OP_JOB_WATCH);
+                writeJobId(scanner, out);
+                System.out.println(readFinalReply(in, out).getMessage());
+                break;
+            case "3":
+                out.writeByte(Protocol.OP_JOB_CANCEL);
+                writeJobId(scanner, out);
+                System.out.println(readReply(in, out).getMessage());
+                break;
+            case "4":
+                break;
+            default:
+                System.out.println("Invalid choice. Try again.");
+                break;
+        }
+    }
+
+    private static void writeJobId(Scanner scanner, DataOutputStream out) throws IOException {
+        System.out.print("Enter the job id: ");
+        long id;
+        try {
+            id = Long.parseLong(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        // the opcode is already written, so an unparsable id still goes out and is answered "no job"
+        out.writeLong(id);
+    }
+
+    private static void listJobs(DataInputStream in, DataOutputStream out) throws IOException {
+        if (!readReply(in, out).isOk()) {
+            return;
+        }
+        int count = in.readInt();
+        if (count == 0) {
+            System.out.println("No jobs.");
+        }
+        for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            byte state = in.readByte();
+            String description = Protocol.readString(in);
+            long progress = in.readLong();
+            String message = Protocol.readString(in);
+            System.out.printf("%5d  %-9s  %s%n", id, JOB_STATES[state], description);
+            if (state == Protocol.JOB_RUNNING) {
+                System.out.println("       " + progress + " entries processed");
+            } else if (!message.isEmpty()) {
+                System.out.println("       " + message);
+            }
+        }
+    }
+
+    private static void moveToDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter the name of the directory to move to:");
         String dirName = scanner.nextLine();
-        out.writeObject(dirName);
+        Protocol.writeString(out, dirName);
 
-        String newCurrentDir = (String) in.readObject();
-        System.out.println("Current directory: " + newCurrentDir);
+        System.out.println(readReply(in, out).getMessage());
     }
 
 
-    private static void listCurrentDirectory(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        List<String> files = (List<String>) in.readObject();
-        System.out.println("Current directory contents:");
-        for (String file : files) {
-            System.out.println(file);
+    /** Pages through the current directory; the server sorts and filters, and sends one screen at a time. */
+    private static void listCurrentDirectory(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
+        byte sort = Protocol.LIST_SORT_NAME;
+        boolean descending = false;
+        String prefix = "";
+        String cursor = "";
+        while (true) {
+            out.writeByte(Protocol.OP_LIST_DIRECTORY);
+            out.writeByte(sort);
+            out.writeBoolean(descending);
+            Protocol.writeString(out, prefix);
+            Protocol.writeString(out, cursor);
+            out.writeInt(LIST_PAGE_ENTRIES);
+
+            Protocol.Reply reply = readReply(in, out);
+            System.out.println(reply.getMessage());
+            if (!reply.isOk()) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = Protocol.readString(in);
+                byte type = in.readByte();
+                long size = in.readLong();
+                long modified = in.readLong();
+                System.out.printf("%s %12d  %tF %<tR  %s%n", type == Protocol.ENTRY_DIRECTORY ? "d" : "-",
+                        size, modified, name);
+            }
+            String next = Protocol.readString(in);
+            if (next.isEmpty() && cursor.isEmpty()) {
+                return;
+            }
+            System.out.println(next.isEmpty() ? "-- end of listing --" : "-- more --");
+            System.out.println("[Enter] next page, s name|size|time sort, r reverse, f <prefix> filter, q quit:");
+
+            String command = scanner.nextLine().trim();
+            if (command.equalsIgnoreCase("q")) {
+                return;
+            } else if (command.isEmpty()) {
+                if (next.isEmpty()) {
+                    return;
+                }
+                cursor = next;
+                continue;
+            } else if (command.equalsIgnoreCase("r")) {
+                descending = !descending;
+            } else if (command.startsWith("s ")) {
+                String order = command.substring(2).trim();
+                sort = order.equals("size") ? Protocol.LIST_SORT_SIZE
+                        : order.equals("time") ? Protocol.LIST_SORT_MODIFIED : Protocol.LIST_SORT_NAME;
+            } else if (command.startsWith("f")) {
+                prefix = command.substring(1).trim();
+            } else {
+                System.out.println("Invalid choice. Try again.");
+            }
+            cursor = "";
         }
     }
 
-    private static void moveBackDirectory(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        String newCurrentDir = (String) in.readObject();
-        System.out.println("Current directory: " + newCurrentDir);
+    private static void moveBackDirectory(DataInputStream in, DataOutputStream out) throws IOException {
+        System.out.println(readReply(in, out).getMessage());
     }
 
-    private static void manageFile(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    private static void manageFile(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("File Management:");
         System.out.println("1. Create File");
         System.out.println("2. Rename File");
@@ -270,92 +861,124 @@ public class Client {
         String choice = scanner.nextLine();
         switch (choice) {
             case "1":
-                out.writeObject("create");
+                out.writeByte(Protocol.OP_CREATE_FILE);
                 createFile(scanner, out);
                 break;
             case "2":
-                out.writeObject("rename");
+                out.writeByte(Protocol.OP_RENAME_FILE);
                 renameFile(scanner, out);
                 break;
             case "3":
-                out.writeObject("delete");
+                out.writeByte(Protocol.OP_DELETE_FILE);
                 deleteFile(scanner, out);
                 break;
             case "4":
-                out.writeObject("view file");
                 viewFile(scanner, in, out);
-                break;
+                return;
             case "5":
-                out.writeObject("copy");
+                out.writeByte(Protocol.OP_COPY_FILE);
                 copyFile(scanner, out);
                 break;
             case "6":
-                out.writeObject("move");
+                out.writeByte(Protocol.OP_MOVE_FILE);
                 moveFile(scanner, out);
                 break;
             case "7":
-                out.writeObject("exit");
                 return;
             default:
                 System.out.println("Invalid choice. Try again.");
                 return;
         }
-        System.out.println((String) in.readObject());
+        System.out.println(readReply(in, out).getMessage());
     }
 
-    private static void createFile(Scanner scanner, ObjectOutputStream out) throws IOException {
+    private static void createFile(Scanner scanner, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the new file:");
         String filePath = scanner.nextLine();
-        out.writeObject(filePath);
+        Protocol.writeString(out, filePath);
     }
 
 
-    private static void renameFile(Scanner scanner, ObjectOutputStream out) throws IOException {
+    private static void renameFile(Scanner scanner, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the file to rename:");
         String sourcePath = scanner.nextLine();
-        out.writeObject(sourcePath);
+        Protocol.writeString(out, sourcePath);
 
         System.out.println("Enter the new name of the file:");
         String newName = scanner.nextLine();
-        out.writeObject(newName);
+        Protocol.writeString(out, newName);
     }
 
-    private static void deleteFile(Scanner scanner, ObjectOutputStream out) throws IOException {
+    private static void deleteFile(Scanner scanner, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the file to delete:");
         String filePath = scanner.nextLine();
-        out.writeObject(filePath);
+        Protocol.writeString(out, filePath);
     }
 
-    private static void viewFile(Scanner scanner, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+    /** Pages through a file on the server; only the visible lines are ever transferred. */
+    private static void viewFile(Scanner scanner, DataInputStream in, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the file to view:");
         String filePath = scanner.nextLine();
-        out.writeObject(filePath);
+        long fromLine = 0;
+        while (true) {
+            out.writeByte(Protocol.OP_VIEW_FILE);
+            Protocol.writeString(out, filePath);
+            out.writeLong(fromLine);
+            out.writeInt(VIEW_PAGE_LINES);
+
+            Protocol.Reply reply = readReply(in, out);
+            if (!reply.isOk()) {
+                System.out.println(reply.getMessage());
+                return;
+            }
+            long firstLine = in.readLong();
+            long totalLines = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                System.out.println(Protocol.readString(in));
+            }
+            String position = firstLine < 0 ? "Last " + count + " lines" : "Lines " + (firstLine + 1) + "-" + (firstLine + count);
+            System.out.println("-- " + position + (totalLines < 0 ? "" : " of " + totalLines) + " --");
+            System.out.println("[Enter] next page, p previous, t tail, <number> go to line, q quit:");
 
-        @SuppressWarnings("unchecked")
-        List<String> lines = (List<String>) in.readObject();
-        for (String line : lines) {
-            System.out.println(line);
+            String command = scanner.nextLine().trim();
+            if (command.equalsIgnoreCase("q")) {
+                return;
+            } else if (command.equalsIgnoreCase("t")) {
+                fromLine = -1;
+            } else if (command.equalsIgnoreCase("p")) {
+                fromLine = firstLine < 0 ? -1 : Math.max(0, firstLine - VIEW_PAGE_LINES);
+            } else if (command.isEmpty()) {
+                fromLine = firstLine < 0 ? -1 : firstLine + count;
+            } else {
+                try {
+                    fromLine = Math.max(0, Long.parseLong(command) - 1);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid choice. Try again.");
+                    fromLine = firstLine;
+                }
+            }
         }
     }
 
-    private static void copyFile(Scanner scanner, ObjectOutputStream out) throws IOException {
+    private static void copyFile(Scanner scanner, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the source file:");
         String sourcePath = scanner.nextLine();
-        out.writeObject(sourcePath);
+        Protocol.writeString(out, sourcePath);
 
         System.out.println("Enter the absolute path of the destination directory:");
         String destPath = scanner.nextLine();
-        out.writeObject(destPath);
+        Protocol.writeString(out, destPath);
     }
 
-    private static void moveFile(Scanner scanner, ObjectOutputStream out) throws IOException {
+    private static void moveFile(Scanner scanner, DataOutputStream out) throws IOException {
         System.out.println("Enter the absolute path of the source file:");
         String sourcePath = scanner.nextLine();
-        out.writeObject(sourcePath);
+        Protocol.writeString(out, sourcePath);
 
         System.out.println("Enter the absolute path of the destination directory:");
         String destPath = scanner.nextLine();
-        out.writeObject(destPath);
+        Protocol.writeString(out, destPath);
     }
 
 }
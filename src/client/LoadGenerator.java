@@ -0,0 +1,302 @@
+package client;
+
+import utils.Compression;
+import utils.LatencyHistogram;
+import utils.Protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opens many sessions against a running server and has each replay a weighted mix of
+ * operations, with random think times between them, then reports throughput and
+ * latency percentiles per operation:
+ * <pre>
+ *   java client.LoadGenerator --sessions 200 --duration 120 --mix download=50,list=30,upload=20 --think 50
+ * </pre>
+ * The sessions log in as {@code --users} accounts {@code load-0}, {@code load-1}, ...
+ * (password {@code load}), which are registered and given a test data set first: a
+ * {@code seed.bin} of {@code --size} bytes, a {@code seed.txt} and a {@code sub}
+ * folder. Uploads overwrite a few files per session, each time with new content, so
+ * the server stores every byte but storage does not grow. Only operations that start
+ * after the {@code --warmup} seconds count. Sessions run on virtual threads; a failed
+ * connection is counted as an error and reopened, resuming the session by its token.
+ */
+public class LoadGenerator {
+    private static final String PASSWORD = "load";
+    private static final int UPLOAD_NAMES = 4;
+    private static final int SEED_LINES = 10_000;
+
+    enum Operation {
+        LIST, DOWNLOAD, UPLOAD, SEARCH, VIEW, CD;
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final int size;
+    private final long thinkMillis;
+    private final Operation[] mix;
+    private final byte[] codecs = Compression.parseList(System.getProperty("client.compression", "fast,deflate"));
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final AtomicLong completed = new AtomicLong();
+    private volatile long measureFrom;
+    private volatile long stopAt;
+
+    LoadGenerator(String host, int port, int users, int size, long thinkMillis, Map<Operation, Integer> weights) {
+        this.host = host;
+        this.port = port;
+        this.users = users;
+        this.size = size;
+        this.thinkMillis = thinkMillis;
+        int slots = weights.values().stream().mapToInt(Integer::intValue).sum();
+        this.mix = new Operation[slots];
+        int slot = 0;
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            for (int i = 0; i < weight.getValue(); i++) {
+                mix[slot++] = weight.getKey();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "localhost";
+        int port = 12345;
+        int sessions = 50;
+        int users = 10;
+        int duration = 60;
+        int warmup = 10;
+        int size = 64 * 1024;
+        long think = 100;
+        String mix = "list=30,download=35,upload=10,search=10,view=10,cd=5";
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = args[++i];
+                switch (args[i - 1]) {
+                    case "--host": host = value; break;
+                    case "--port": port = Integer.parseInt(value); break;
+                    case "--sessions": sessions = Integer.parseInt(value); break;
+                    case "--users": users = Integer.parseInt(value); break;
+                    case "--duration": duration = Integer.parseInt(value); break;
+                    case "--warmup": warmup = Integer.parseInt(value); break;
+                    case "--size": size = Integer.parseInt(value); break;
+                    case "--think": think = Long.parseLong(value); break;
+                    case "--mix": mix = value; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+                }
+            }
+            if (sessions < 1 || users < 1 || duration < 1 || warmup < 0 || size < 0 || think < 0) {
+                throw new IllegalArgumentException("Counts and times must be positive");
+            }
+            new LoadGenerator(host, port, Math.min(users, sessions), size, think, parseMix(mix)).run(sessions, warmup, duration);
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println(e.getMessage() == null ? "Missing option value" : e.getMessage());
+            System.err.println("Usage: client.LoadGenerator [--host HOST] [--port PORT] [--sessions N] [--users N]");
+            System.err.println("         [--duration SECONDS] [--warmup SECONDS] [--size BYTES] [--think MILLIS]");
+            System.err.println("         [--mix list=30,download=35,upload=10,search=10,view=10,cd=5]");
+            System.exit(2);
+        }
+    }
+
+    /** {@code name=weight} pairs, weights in any unit; operations left out are not run. */
+    static Map<Operation, Integer> parseMix(String spec) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=");
+            int weight = pair.length == 2 ? Integer.parseInt(pair[1].trim()) : -1;
+            if (weight < 0) {
+                throw new IllegalArgumentException("Bad mix entry: " + part);
+            }
+            weights.merge(Operation.valueOf(pair[0].trim().toUpperCase()), weight, Integer::sum);
+        }
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("The mix has no operations");
+        }
+        return weights;
+    }
+
+    void run(int sessions, int warmupSeconds, int durationSeconds) throws Exception {
+        System.out.println("Preparing " + users + " users...");
+        for (int user = 0; user < users; user++) {
+            prepare("load-" + user);
+        }
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        stopAt = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        System.out.printf("Running %d sessions: %d s warmup, %d s measured%n", sessions, warmupSeconds, durationSeconds);
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < sessions; i++) {
+            int id = i;
+            threads.submit(() -> runSession(id));
+        }
+        threads.shutdown();
+        long reported = 0;
+        while (!threads.awaitTermination(5, TimeUnit.SECONDS)) {
+            long done = completed.get();
+            System.out.printf("%5d s  %8.1f ops/s%n", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    (done - reported) / 5.0);
+            reported = done;
+        }
+        report(durationSeconds);
+    }
+
+    private void prepare(String user) throws IOException {
+        try (Session session = Session.connect(host, port, codecs)) {
+            try {
+                session.register(user, PASSWORD);
+            } catch (ServerException e) {
+                if (e.getStatus() != Protocol.STATUS_EXISTS) {
+                    throw e;
+                }
+            }
+            session.login(user, PASSWORD);
+            byte[] content = new byte[size];
+            new Random(user.hashCode()).nextBytes(content);
+            session.upload("seed.bin", content);
+            StringBuilder text = new StringBuilder();
+            for (int line = 0; line < SEED_LINES; line++) {
+                text.append("line ").append(line).append(" of the seed text for ").append(user).append('\n');
+            }
+            session.upload("seed.txt", text.toString().getBytes(StandardCharsets.UTF_8));
+            if (session.list("sub").stream().noneMatch(entry -> entry.getName().equals("sub"))) {
+                session.createDirectory("sub");
+            }
+        }
+    }
+
+    private void runSession(int id) {
+        String user = "load-" + id % users;
+        byte[] content = new byte[size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        random.nextBytes(content);
+        long uploads = 0;
+        Session session = null;
+        String token = null;
+        while (System.nanoTime() < stopAt) {
+            Operation operation = mix[random.nextInt(mix.length)];
+            long start = System.nanoTime();
+            try {
+                if (session == null) {
+                    session = Session.connect(host, port, codecs);
+                    token = token == null ? login(session, user) : resume(session, user, token);
+                    start = System.nanoTime();
+                }
+                long moved = 0;
+                switch (operation) {
+                    case LIST:
+                        session.list("");
+                        break;
+                    case DOWNLOAD:
+                        moved = session.downloadAndDiscard(user + "/seed.bin");
+                        break;
+                    case UPLOAD:
+                        uploads++;
+                        for (int i = 0; i < Math.min(8, content.length); i++) {
+                            content[i] = (byte) (uploads >>> (8 * i));
+                        }
+                        session.upload("upload-" + id + "-" + uploads % UPLOAD_NAMES + ".bin", content);
+                        moved = content.length;
+                        break;
+                    case SEARCH:
+                        session.search("seed", 20);
+                        break;
+                    case VIEW:
+                        session.view(session.currentDirectory() + "/seed.txt", random.nextInt(SEED_LINES), 40);
+                        break;
+                    case CD:
+                        session.moveTo("sub");
+                        session.back();
+                        break;
+                }
+                if (start >= measureFrom && System.nanoTime() <= stopAt) {
+                    long elapsed = System.nanoTime() - start;
+                    operation.latency.record(elapsed);
+                    operation.bytes.add(moved);
+                    total.record(elapsed);
+                }
+            } catch (ServerException e) {
+                countError(operation, start);
+            } catch (IOException e) {
+                countError(operation, start);
+                if (session != null) {
+                    session.close();
+                    session = null;
+                }
+            }
+            completed.incrementAndGet();
+            if (thinkMillis > 0) {
+                try {
+                    Thread.sleep((long) (-thinkMillis * Math.log(1 - random.nextDouble())));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /** Counts a failure only inside the measured window, like latencies, so it matches the other columns. */
+    private void countError(Operation operation, long start) {
+        if (start >= measureFrom && System.nanoTime() <= stopAt) {
+            operation.errors.increment();
+        }
+    }
+
+    private static String login(Session session, String user) throws IOException {
+        session.login(user, PASSWORD);
+        return session.token();
+    }
+
+    private static String resume(Session session, String user, String token) throws IOException {
+        try {
+            session.resume(token);
+            return token;
+        } catch (ServerException e) {
+            return login(session, user);
+        }
+    }
+
+    private void report(int durationSeconds) {
+        System.out.printf("%n%-10s %9s %7s %10s %8s %9s %9s %9s %9s %9s %9s  (ms)%n",
+                "Operation", "count", "errors", "ops/s", "MB/s", "mean", "p50", "p90", "p99", "p99.9", "max");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot snapshot = operation.latency.snapshot();
+            if (snapshot.getCount() > 0 || operation.errors.sum() > 0) {
+                row(operation.name().toLowerCase(), snapshot, operation.errors.sum(), operation.bytes.sum(), durationSeconds);
+            }
+        }
+        long errors = 0;
+        long bytes = 0;
+        for (Operation operation : Operation.values()) {
+            errors += operation.errors.sum();
+            bytes += operation.bytes.sum();
+        }
+        row("total", total.snapshot(), errors, bytes, durationSeconds);
+    }
+
+    private static void row(String name, LatencyHistogram.Snapshot snapshot, long errors, long bytes, int seconds) {
+        System.out.printf("%-10s %9d %7d %10.1f %8.2f %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                snapshot.getCount(), errors, snapshot.getCount() / (double) seconds, bytes / 1e6 / seconds,
+                millis(snapshot.getMean()), millis(snapshot.valueAt(0.50)), millis(snapshot.valueAt(0.90)),
+                millis(snapshot.valueAt(0.99)), millis(snapshot.valueAt(0.999)), millis(snapshot.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
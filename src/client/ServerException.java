@@ -0,0 +1,22 @@
+package client;
+
+import utils.Protocol;
+
+import java.io.IOException;
+
+/** The server refused or failed a request; the connection itself is still usable. */
+public class ServerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final byte status;
+
+    public ServerException(Protocol.Reply reply) {
+        super(reply.getMessage());
+        this.status = reply.getStatus();
+    }
+
+    /** One of the {@code Protocol.STATUS_*} codes. */
+    public byte getStatus() {
+        return status;
+    }
+}
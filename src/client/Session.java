@@ -0,0 +1,410 @@
+package client;
+
+import utils.Compression;
+import utils.ContentHash;
+import utils.DeltaSync;
+import utils.FileTransfer;
+import utils.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One connection to the server, driven by method calls instead of menus: the same
+ * commands as {@link Client}, for scripts, bulk jobs and load tests.
+ * <p>
+ * Every method sends one command and waits for its outcome, returning the server's
+ * message on success and throwing {@link ServerException} when the server says no.
+ * Remote paths are given the way the server expects them: names relative to the
+ * current folder for folder and upload commands, paths under the storage root (e.g.
+ * {@code bob/notes.txt}) for downloads, and full server paths (e.g.
+ * {@code res/server_files/bob/notes.txt}) for file commands. A session is not thread
+ * safe; open one per thread.
+ * <p>
+ * A login also yields a {@link #token()}. If the connection drops, a new one can
+ * {@link #resume} with it, back in the same folder without the password, for as long as
+ * the server keeps the session.
+ */
+public class Session implements Closeable {
+    private static final int LIST_PAGE_ENTRIES = 1000;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private byte compression = Compression.NONE;
+    private String currentDirectory;
+    private String token;
+
+    private Session(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE));
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), FileTransfer.CHUNK_SIZE));
+    }
+
+    /** Connects and offers {@code codecs} (best first, may be empty) for transfer compression. */
+    public static Session connect(String host, int port, byte... codecs) throws IOException {
+        Session session = new Session(new Socket(host, port));
+        try {
+            Protocol.writeHandshake(session.out);
+            session.expect(Protocol.STATUS_OK);
+            if (codecs.length > 0) {
+                session.out.writeByte(Protocol.OP_COMPRESSION);
+                session.out.writeByte(codecs.length);
+                session.out.write(codecs);
+                if (session.reply().isOk()) {
+                    session.compression = session.in.readByte();
+                }
+            }
+            return session;
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    public String login(String username, String password) throws IOException {
+        out.writeByte(Protocol.OP_LOGIN);
+        Protocol.writeString(out, username);
+        Protocol.writeString(out, password);
+        return loggedIn(expect(Protocol.STATUS_OK));
+    }
+
+    /** Takes over the session {@code token} names, e.g. one from a connection that dropped. */
+    public String resume(String token) throws IOException {
+        out.writeByte(Protocol.OP_RESUME);
+        Protocol.writeString(out, token);
+        return loggedIn(expect(Protocol.STATUS_OK));
+    }
+
+    private String loggedIn(String message) throws IOException {
+        currentDirectory = Protocol.readString(in);
+        token = Protocol.readString(in);
+        return message;
+    }
+
+    /** Names this session for {@link #resume}; null before login. */
+    public String token() {
+        return token;
+    }
+
+    public String register(String username, String password) throws IOException {
+        out.writeByte(Protocol.OP_REGISTER);
+        Protocol.writeString(out, username);
+        Protocol.writeString(out, password);
+        return expect(Protocol.STATUS_OK);
+    }
+
+    /** The folder relative names resolve against, as the server reported it; null before login. */
+    public String currentDirectory() {
+        return currentDirectory;
+    }
+
+    public String moveTo(String folder) throws IOException {
+        out.writeByte(Protocol.OP_MOVE_TO);
+        Protocol.writeString(out, folder);
+        return changeDirectory();
+    }
+
+    public String back() throws IOException {
+        out.writeByte(Protocol.OP_BACK);
+        return changeDirectory();
+    }
+
+    private String changeDirectory() throws IOException {
+        Protocol.Reply reply = reply();
+        currentDirectory = Protocol.readString(in);
+        return check(reply);
+    }
+
+    /**
+     * Uploads {@code local} into the current folder under its own name. As in the
+     * interactive client, content the server already has is not sent, and a changed
+     * file only sends the ranges that differ. Returns the bytes actually sent.
+     */
+    public long upload(Path local) throws IOException {
+        String name = local.getFileName().toString();
+        out.writeByte(Protocol.OP_UPLOAD_DELTA);
+        Protocol.writeString(out, name);
+        out.writeLong(Files.size(local));
+        out.write(ContentHash.of(local));
+        Protocol.Reply reply = reply();
+        long sent = 0;
+        if (reply.getStatus() == Protocol.STATUS_CONTINUE) {
+            DeltaSync.Signatures signatures = DeltaSync.readSignatures(in);
+            try (FileChannel channel = FileChannel.open(local, StandardOpenOption.READ)) {
+                sent = DeltaSync.writeDelta(channel, signatures, out, Compression.forFile(compression, name));
+            }
+            reply = reply();
+        }
+        check(reply);
+        return sent;
+    }
+
+    /** Uploads {@code content} as {@code name} in the current folder, sending all of it. */
+    public String upload(String name, byte[] content) throws IOException {
+        out.writeByte(Protocol.OP_UPLOAD);
+        Protocol.writeString(out, name);
+        out.writeLong(content.length);
+        out.writeBoolean(false);
+        Protocol.Reply reply = reply();
+        if (reply.getStatus() != Protocol.STATUS_CONTINUE) {
+            return check(reply);
+        }
+        FileTransfer.sendChunks(ByteBuffer.wrap(content), out, Compression.forFile(compression, name));
+        return expect(Protocol.STATUS_OK);
+    }
+
+    /** Downloads {@code remote} to {@code local}, replacing it; returns its size. */
+    public long download(String remote, Path local) throws IOException {
+        Path parent = local.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return receive(remote, channel);
+        }
+    }
+
+    /** Downloads {@code remote} without keeping it, e.g. to load the server; returns its size. */
+    public long downloadAndDiscard(String remote) throws IOException {
+        return receive(remote, null);
+    }
+
+    private long receive(String remote, FileChannel target) throws IOException {
+        out.writeByte(Protocol.OP_DOWNLOAD);
+        Protocol.writeString(out, remote);
+        expect(Protocol.STATUS_OK);
+        long size = in.readLong();
+        if (in.readByte() == Compression.NONE) {
+            FileTransfer.receiveRaw(Channels.newChannel(in), target, size);
+        } else {
+            FileTransfer.receiveChunks(in, target);
+        }
+        return size;
+    }
+
+    /** Every entry of the current folder whose name starts with {@code prefix}, by name. */
+    public List<Entry> list(String prefix) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String cursor = "";
+        do {
+            out.writeByte(Protocol.OP_LIST_DIRECTORY);
+            out.writeByte(Protocol.LIST_SORT_NAME);
+            out.writeBoolean(false);
+            Protocol.writeString(out, prefix);
+            Protocol.writeString(out, cursor);
+            out.writeInt(LIST_PAGE_ENTRIES);
+            expect(Protocol.STATUS_OK);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = Protocol.readString(in);
+                byte type = in.readByte();
+                long size = in.readLong();
+                long modified = in.readLong();
+                entries.add(new Entry(name, type == Protocol.ENTRY_DIRECTORY, size, modified));
+            }
+            cursor = Protocol.readString(in);
+        } while (!cursor.isEmpty());
+        return entries;
+    }
+
+    /** Paths under the storage root matching {@code query}, best first. */
+    public List<Entry> search(String query, int maxResults) throws IOException {
+        out.writeByte(Protocol.OP_SEARCH);
+        Protocol.writeString(out, query);
+        out.writeInt(maxResults);
+        expect(Protocol.STATUS_OK);
+        int count = in.readInt();
+        List<Entry> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String path = Protocol.readString(in);
+            results.add(new Entry(path, false, in.readLong(), 0));
+        }
+        return results;
+    }
+
+    public String createDirectory(String name) throws IOException {
+        return folderCommand(Protocol.OP_CREATE_DIRECTORY, name);
+    }
+
+    public String renameDirectory(String name, String newName) throws IOException {
+        return folderCommand(Protocol.OP_RENAME_DIRECTORY, name, newName);
+    }
+
+    /** Deletes the folder and everything in it, waiting for the server job to finish. */
+    public String deleteDirectory(String name) throws IOException {
+        out.writeByte(Protocol.OP_DELETE_DIRECTORY);
+        Protocol.writeString(out, name);
+        Protocol.Reply reply = reply();
+        if (reply.getStatus() == Protocol.STATUS_CONFIRM) {
+            out.writeBoolean(true);
+            reply = reply();
+        }
+        return awaitJob(reply);
+    }
+
+    /** Copies the folder into {@code destination}, relative to the current one, waiting for the job to finish. */
+    public String copyDirectory(String name, String destination) throws IOException {
+        return folderCommand(Protocol.OP_COPY_DIRECTORY, name, destination);
+    }
+
+    public String moveDirectory(String name, String destination) throws IOException {
+        return folderCommand(Protocol.OP_MOVE_DIRECTORY, name, destination);
+    }
+
+    private String folderCommand(byte opcode, String... arguments) throws IOException {
+        out.writeByte(opcode);
+        for (String argument : arguments) {
+            Protocol.writeString(out, argument);
+        }
+        return awaitJob(reply());
+    }
+
+    /** Follows a job the server started in reply to a command; other replies pass through. */
+    private String awaitJob(Protocol.Reply reply) throws IOException {
+        if (reply.getStatus() != Protocol.STATUS_ACCEPTED) {
+            return check(reply);
+        }
+        out.writeByte(Protocol.OP_JOB_WATCH);
+        out.writeLong(in.readLong());
+        reply = reply();
+        while (reply.getStatus() == Protocol.STATUS_PROGRESS) {
+            reply = Protocol.readReply(in);
+        }
+        return check(reply);
+    }
+
+    public String createFile(String path) throws IOException {
+        return fileCommand(Protocol.OP_CREATE_FILE, path);
+    }
+
+    public String renameFile(String path, String newName) throws IOException {
+        return fileCommand(Protocol.OP_RENAME_FILE, path, newName);
+    }
+
+    public String deleteFile(String path) throws IOException {
+        return fileCommand(Protocol.OP_DELETE_FILE, path);
+    }
+
+    public String copyFile(String path, String destinationFolder) throws IOException {
+        return fileCommand(Protocol.OP_COPY_FILE, path, destinationFolder);
+    }
+
+    public String moveFile(String path, String destinationFolder) throws IOException {
+        return fileCommand(Protocol.OP_MOVE_FILE, path, destinationFolder);
+    }
+
+    private String fileCommand(byte opcode, String... arguments) throws IOException {
+        out.writeByte(opcode);
+        for (String argument : arguments) {
+            Protocol.writeString(out, argument);
+        }
+        return expect(Protocol.STATUS_OK);
+    }
+
+    /** Up to {@code count} lines of a text file from {@code firstLine} (0-based), or its last lines if that is negative. */
+    public List<String> view(String path, long firstLine, int count) throws IOException {
+        out.writeByte(Protocol.OP_VIEW_FILE);
+        Protocol.writeString(out, path);
+        out.writeLong(firstLine);
+        out.writeInt(count);
+        expect(Protocol.STATUS_OK);
+        in.readLong();
+        in.readLong();
+        int lines = in.readInt();
+        List<String> result = new ArrayList<>(lines);
+        for (int i = 0; i < lines; i++) {
+            result.add(Protocol.readString(in));
+        }
+        return result;
+    }
+
+    /** The server's counters and latency tables; admins only. */
+    public String stats() throws IOException {
+        out.writeByte(Protocol.OP_STATS);
+        return expect(Protocol.STATUS_OK);
+    }
+
+    public String logout() throws IOException {
+        out.writeByte(Protocol.OP_EXIT);
+        String message = expect(Protocol.STATUS_OK);
+        currentDirectory = null;
+        token = null;
+        return message;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // nothing left to release
+        }
+    }
+
+    private Protocol.Reply reply() throws IOException {
+        out.flush();
+        return Protocol.readReply(in);
+    }
+
+    private String expect(byte status) throws IOException {
+        Protocol.Reply reply = reply();
+        if (reply.getStatus() != status) {
+            throw new ServerException(reply);
+        }
+        return reply.getMessage();
+    }
+
+    private static String check(Protocol.Reply reply) throws ServerException {
+        if (!reply.isOk()) {
+            throw new ServerException(reply);
+        }
+        return reply.getMessage();
+    }
+
+    /** A folder entry or search result. */
+    public static final class Entry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+
+        Entry(String name, boolean directory, long size, long modified) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** Milliseconds since the epoch; 0 for search results. */
+        public long getModified() {
+            return modified;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package server;
+
+import utils.FileTransfer;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Rate limits on the bytes that transfers move, per user and for the whole server.
+ * <p>
+ * Each limit is a token bucket that may go into debt: a transfer takes what it needs
+ * for the next piece of at most one chunk and, if that leaves the bucket negative,
+ * sleeps until it is paid back. The sleep happens while holding the bucket's fair
+ * lock, so transfers queued on a bucket are served one chunk each in arrival order:
+ * every active transfer gets an equal share, and a small download waits behind one
+ * chunk of each big one instead of behind whole files. A user's own bucket is taken
+ * before the global one, so a user at their limit never holds up anybody else.
+ * <p>
+ * Sessions only draw on the buckets while a {@link Meter} is started, which the
+ * server does for transfer commands; everything else passes through untouched.
+ */
+class Bandwidth implements BandwidthMXBean {
+    private volatile long globalRate;
+    private volatile long userRate;
+    private final Map<String, Long> userOverrides = new ConcurrentHashMap<>();
+    private final Bucket global = new Bucket();
+    private final Map<String, Bucket> users = new ConcurrentHashMap<>();
+
+    Bandwidth(long globalRate, long userRate) {
+        this.globalRate = globalRate;
+        this.userRate = userRate;
+    }
+
+    @Override
+    public long getGlobalBytesPerSecond() {
+        return globalRate;
+    }
+
+    @Override
+    public void setGlobalBytesPerSecond(long bytesPerSecond) {
+        globalRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getUserBytesPerSecond() {
+        return userRate;
+    }
+
+    @Override
+    public void setUserBytesPerSecond(long bytesPerSecond) {
+        userRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getUserLimit(String user) {
+        return userOverrides.getOrDefault(user, userRate);
+    }
+
+    @Override
+    public void setUserLimit(String user, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            userOverrides.remove(user);
+        } else {
+            userOverrides.put(user, bytesPerSecond);
+        }
+    }
+
+    /** Whether moving data for {@code user} is limited at all; null stands for a transfer nobody owns. */
+    boolean isLimited(String user) {
+        return globalRate > 0 || (user != null && getUserLimit(user) > 0);
+    }
+
+    /** Blocks until {@code bytes} may be moved on behalf of {@code user}. */
+    void acquire(String user, long bytes) throws InterruptedIOException {
+        while (bytes > 0) {
+            long piece = Math.min(bytes, FileTransfer.CHUNK_SIZE);
+            if (user != null) {
+                long rate = getUserLimit(user);
+                if (rate > 0) {
+                    users.computeIfAbsent(user, name -> new Bucket()).take(piece, rate);
+                }
+            }
+            global.take(piece, globalRate);
+            bytes -= piece;
+        }
+    }
+
+    Meter newMeter() {
+        return new Meter();
+    }
+
+    private static final class Bucket {
+        private final ReentrantLock turn = new ReentrantLock(true);
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+
+        void take(long bytes, long rate) throws InterruptedIOException {
+            if (rate <= 0) {
+                return;
+            }
+            try {
+                turn.lockInterruptibly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+            try {
+                long now = System.nanoTime();
+                // Up to a tenth of a second of unused rate is kept, so short requests go straight through.
+                double burst = Math.max(rate / 10.0, FileTransfer.CHUNK_SIZE);
+                tokens = Math.min(burst, tokens + (now - refilledAt) * (rate / 1e9));
+                refilledAt = now;
+                tokens -= bytes;
+                if (tokens < 0) {
+                    TimeUnit.NANOSECONDS.sleep((long) (-tokens * 1e9 / rate));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            } finally {
+                turn.unlock();
+            }
+        }
+    }
+
+    /** One session's switch for metering its socket streams, and the streams it meters. */
+    final class Meter {
+        private volatile String account;
+        private volatile boolean metered;
+
+        /** Charges what the session's streams move from now on to {@code user}, who may be null. */
+        void start(String user) {
+            account = user;
+            metered = true;
+        }
+
+        void stop() {
+            metered = false;
+        }
+
+        /** Whether the bytes moved right now are limited; unlimited transfers can keep zero-copy paths. */
+        boolean isLimited() {
+            return metered && Bandwidth.this.isLimited(account);
+        }
+
+        InputStream wrap(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        charge(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        charge(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    charge(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    while (length > 0) {
+                        int piece = Math.min(length, FileTransfer.CHUNK_SIZE);
+                        charge(piece);
+                        out.write(buffer, offset, piece);
+                        offset += piece;
+                        length -= piece;
+                    }
+                }
+            };
+        }
+
+        private void charge(long bytes) throws InterruptedIOException {
+            if (metered) {
+                acquire(account, bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * Transfer rate limits, adjustable at runtime over JMX as {@code server:type=Bandwidth}.
+ * Rates are in bytes per second; 0 means unlimited.
+ */
+public interface BandwidthMXBean {
+    long getGlobalBytesPerSecond();
+
+    void setGlobalBytesPerSecond(long bytesPerSecond);
+
+    /** The limit of every user without an override of their own. */
+    long getUserBytesPerSecond();
+
+    void setUserBytesPerSecond(long bytesPerSecond);
+
+    long getUserLimit(String user);
+
+    /** Gives {@code user} a limit of their own; a negative rate drops the override. */
+    void setUserLimit(String user, long bytesPerSecond);
+}
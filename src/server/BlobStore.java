@@ -0,0 +1,287 @@
+package server;
+
+import utils.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store for uploaded file contents.
+ * <p>
+ * Each distinct content is kept once as {@code <root>/<hh>/<sha256>}. A user's file
+ * is a hard link to its blob, so directory entries act as references and the file
+ * system's link count is the reference count: when a user deletes the last link
+ * other than the store's own, the blob goes too. Renames and moves need no help;
+ * anything that writes into an existing file in place must call {@link #detach}
+ * first so it does not change every other reference.
+ * <p>
+ * Hard links need the blobs and the upload folder on one file system. Where links
+ * are not supported the store falls back to plain copies.
+ */
+class BlobStore {
+    private static final Logger LOGGER = Logger.getLogger(BlobStore.class.getName());
+    private static final int LOCK_STRIPES = 64;
+
+    private final Path root;
+    private final Path tempDir;
+    /** Blob file key (device + inode) to content hash, so a user file can be recognised as a reference. */
+    private final Map<Object, String> hashByFileKey = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong bytesDeduplicated = new AtomicLong();
+    private final Metrics metrics;
+
+    BlobStore(Path root, Metrics metrics) {
+        this.root = root;
+        this.metrics = metrics;
+        this.tempDir = root.resolve("tmp");
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /** Indexes existing blobs and removes ones no user file refers to any more. */
+    void load() throws IOException {
+        Files.createDirectories(tempDir);
+        try (Stream<Path> temps = Files.list(tempDir)) {
+            temps.forEach(this::deleteQuietly);
+        }
+        int blobs = 0;
+        int collected = 0;
+        try (Stream<Path> walk = Files.walk(root, 2)) {
+            for (Path blob : (Iterable<Path>) walk::iterator) {
+                if (!Files.isRegularFile(blob) || blob.startsWith(tempDir)) {
+                    continue;
+                }
+                if (linkCount(blob) == 1) {
+                    deleteQuietly(blob);
+                    collected++;
+                } else {
+                    hashByFileKey.put(fileKey(blob), blob.getFileName().toString());
+                    blobs++;
+                }
+            }
+        }
+        LOGGER.info("Blob store: " + blobs + " blobs, " + collected + " unreferenced blobs removed.");
+    }
+
+    Path newTempFile() throws IOException {
+        return Files.createFile(tempDir.resolve(UUID.randomUUID().toString()));
+    }
+
+    /** The content hash of {@code path} if it is linked to a stored blob, else null. */
+    String hashOf(Path path) throws IOException {
+        Object key = fileKey(path);
+        return key == null ? null : hashByFileKey.get(key);
+    }
+
+    /** True if content with this hash and size is stored. */
+    boolean contains(String hash, long size) throws IOException {
+        Path blob = blobPath(hash);
+        return Files.exists(blob) && Files.size(blob) == size;
+    }
+
+    /**
+     * Points {@code target} at an already stored blob. Returns false, leaving
+     * {@code target} untouched, when no blob with that hash and size exists.
+     */
+    boolean linkExisting(String hash, long size, Path target) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Path blob = blobPath(hash);
+            if (!Files.exists(blob) || Files.size(blob) != size) {
+                return false;
+            }
+            if (Files.exists(target) && Files.isSameFile(target, blob)) {
+                bytesDeduplicated.addAndGet(size);
+                return true;
+            }
+            removeExisting(target);
+            synchronized (lockFor(hash)) {
+                if (!Files.exists(blob)) {
+                    return false;
+                }
+                link(target, blob);
+            }
+            bytesDeduplicated.addAndGet(size);
+            return true;
+        } finally {
+            metrics.disk(Metrics.Disk.LINK, start);
+        }
+    }
+
+    /** Files the fully written {@code temp} under {@code hash} and links {@code target} to it. */
+    void commit(Path temp, String hash, Path target) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Path blob = blobPath(hash);
+            removeExisting(target);
+            synchronized (lockFor(hash)) {
+                if (Files.exists(blob)) {
+                    bytesDeduplicated.addAndGet(Files.size(temp));
+                    Files.delete(temp);
+                } else {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+                    hashByFileKey.put(fileKey(blob), hash);
+                }
+                link(target, blob);
+            }
+        } finally {
+            metrics.disk(Metrics.Disk.COMMIT, start);
+        }
+    }
+
+    /** Copies by adding another reference; a source that is not in the store yet is adopted first. */
+    void copy(Path source, Path target) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (Files.exists(target) && Files.isSameFile(source, target)) {
+                return;
+            }
+            String hash = hashByFileKey.get(fileKey(source));
+            if (hash == null) {
+                hash = HexFormat.of().formatHex(ContentHash.of(source));
+                Path blob = blobPath(hash);
+                synchronized (lockFor(hash)) {
+                    if (!Files.exists(blob)) {
+                        Files.createDirectories(blob.getParent());
+                        if (!tryLink(blob, source)) {
+                            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                            return;
+                        }
+                        hashByFileKey.put(fileKey(blob), hash);
+                    }
+                }
+            }
+            Path blob = blobPath(hash);
+            removeExisting(target);
+            synchronized (lockFor(hash)) {
+                if (!Files.exists(blob)) {
+                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                }
+                link(target, blob);
+            }
+            bytesDeduplicated.addAndGet(Files.size(blob));
+        } finally {
+            metrics.disk(Metrics.Disk.COPY, start);
+        }
+    }
+
+    /** Deletes a user file and, if it was the last reference, its blob. */
+    void delete(Path path) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Object key = fileKey(path);
+            String hash = key == null ? null : hashByFileKey.get(key);
+            if (hash == null) {
+                Files.delete(path);
+                return;
+            }
+            synchronized (lockFor(hash)) {
+                Files.delete(path);
+                Path blob = blobPath(hash);
+                if (Files.exists(blob) && linkCount(blob) == 1) {
+                    Files.delete(blob);
+                    hashByFileKey.remove(key);
+                }
+            }
+        } finally {
+            metrics.disk(Metrics.Disk.DELETE, start);
+        }
+    }
+
+    /** Gives {@code path} its own copy of the content if it shares a blob, so it can be modified in place. */
+    void detach(Path path) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!Files.exists(path)) {
+                return;
+            }
+            Object key = fileKey(path);
+            String hash = key == null ? null : hashByFileKey.get(key);
+            if (hash == null) {
+                return;
+            }
+            Path temp = newTempFile();
+            Files.copy(path, temp, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (lockFor(hash)) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Path blob = blobPath(hash);
+                if (Files.exists(blob) && linkCount(blob) == 1) {
+                    Files.delete(blob);
+                    hashByFileKey.remove(key);
+                }
+            }
+        } finally {
+            metrics.disk(Metrics.Disk.DETACH, start);
+        }
+    }
+
+    long bytesDeduplicated() {
+        return bytesDeduplicated.get();
+    }
+
+    /** Drops whatever {@code target} currently refers to; done outside the stripe locks, which never nest. */
+    private void removeExisting(Path target) throws IOException {
+        if (Files.exists(target)) {
+            delete(target);
+        }
+    }
+
+    private void link(Path target, Path blob) throws IOException {
+        if (!tryLink(target, blob)) {
+            Files.copy(blob, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private boolean tryLink(Path link, Path existing) throws IOException {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (FileAlreadyExistsException | NoSuchFileException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            LOGGER.log(Level.FINE, "Hard links unavailable, copying instead: ", e);
+            return false;
+        }
+    }
+
+    private Path blobPath(String hash) {
+        return root.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private Object lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    /** Hard link count, or -1 where the file system does not report it (nothing is collected then). */
+    private static int linkCount(Path path) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(path, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete " + path, e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+/**
+ * Accepts connections and decides which thread runs each {@link Server.ClientHandler}
+ * command. Every engine enforces {@link ServerConfig#MAX_CONNECTIONS}.
+ */
+abstract class ConnectionEngine {
+    private static final Logger LOGGER = Logger.getLogger(ConnectionEngine.class.getName());
+    private final Semaphore connectionSlots = new Semaphore(ServerConfig.MAX_CONNECTIONS);
+
+    static ConnectionEngine create() throws IOException {
+        switch (ServerConfig.ENGINE) {
+            case "virtual":
+                return new VirtualThreadEngine();
+            case "selector":
+                return new SelectorEngine();
+            default:
+                throw new IllegalArgumentException("Unknown server.engine: " + ServerConfig.ENGINE);
+        }
+    }
+
+    abstract void serve(ServerSocketChannel serverChannel) throws IOException;
+
+    /** Reserves a connection slot, or closes the channel when the server is full. */
+    protected boolean admit(SocketChannel channel) {
+        if (connectionSlots.tryAcquire()) {
+            return true;
+        }
+        LOGGER.warning("Connection limit reached, rejecting " + channel.socket().getInetAddress());
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    /** Returns the slot taken by {@link #admit}; the session must already be closed. */
+    protected void release() {
+        connectionSlots.release();
+    }
+}
@@ -0,0 +1,149 @@
+package server;
+
+import utils.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One page of a sorted, optionally prefix-filtered directory listing.
+ * <p>
+ * A page is the {@code limit} entries that sort directly after the cursor. They are
+ * picked with a bounded heap in one pass over the directory, so a page costs
+ * O(entries) time but only O(limit) memory, and the full listing is never built or
+ * sent. The cursor is the sort key of the last entry returned, wrapped together with
+ * the sort order and filter it belongs to; clients treat it as opaque. Sorting by name
+ * needs no attributes, so only the entries on the page are stat'ed.
+ */
+final class DirectoryListing {
+    static final int MAX_PAGE_SIZE = 1000;
+    private static final byte CURSOR_VERSION = 1;
+
+    private DirectoryListing() {
+    }
+
+    static final class Page {
+        final List<MetadataCache.Entry> entries;
+        /** Null on the last page. */
+        final String nextCursor;
+
+        Page(List<MetadataCache.Entry> entries, String nextCursor) {
+            this.entries = entries;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    /** Throws {@link IllegalArgumentException} for an unknown sort order or a cursor that does not belong to this listing. */
+    static Page page(MetadataCache metadata, Path dir, byte sort, boolean descending, String prefix, String cursor, int limit) throws IOException {
+        Comparator<Key> order = comparator(sort, descending);
+        Key after = cursor.isEmpty() ? null : decodeCursor(cursor, sort, descending, prefix);
+        int size = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        PriorityQueue<Key> page = new PriorityQueue<>(size + 1, order.reversed());
+        long[] matched = new long[1];
+        metadata.scan(dir, sort != Protocol.LIST_SORT_NAME, entry -> {
+            if (!entry.name.startsWith(prefix) || entry.stat != null && !entry.stat.exists) {
+                return;
+            }
+            Key key = new Key(entry);
+            if (after != null && order.compare(key, after) <= 0) {
+                return;
+            }
+            matched[0]++;
+            if (page.size() < size) {
+                page.add(key);
+            } else if (order.compare(key, page.peek()) < 0) {
+                page.poll();
+                page.add(key);
+            }
+        });
+
+        List<Key> keys = new ArrayList<>(page);
+        keys.sort(order);
+        List<MetadataCache.Entry> entries = new ArrayList<>(keys.size());
+        for (Key key : keys) {
+            MetadataCache.FileStat stat = key.entry.stat != null ? key.entry.stat : metadata.stat(dir.resolve(key.entry.name));
+            if (stat.exists) {
+                entries.add(new MetadataCache.Entry(key.entry.name, stat));
+            }
+        }
+        String next = matched[0] > size ? encodeCursor(keys.get(keys.size() - 1), sort, descending, prefix) : null;
+        return new Page(entries, next);
+    }
+
+    private static Comparator<Key> comparator(byte sort, boolean descending) {
+        Comparator<Key> byName = Comparator.comparing(key -> key.name);
+        Comparator<Key> order;
+        switch (sort) {
+            case Protocol.LIST_SORT_NAME:
+                order = byName;
+                break;
+            case Protocol.LIST_SORT_SIZE:
+                order = Comparator.<Key>comparingLong(key -> key.size).thenComparing(byName);
+                break;
+            case Protocol.LIST_SORT_MODIFIED:
+                order = Comparator.<Key>comparingLong(key -> key.modified).thenComparing(byName);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort order " + sort);
+        }
+        return descending ? order.reversed() : order;
+    }
+
+    private static String encodeCursor(Key last, byte sort, boolean descending, String prefix) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(CURSOR_VERSION);
+            out.writeByte(sort);
+            out.writeBoolean(descending);
+            out.writeUTF(prefix);
+            out.writeUTF(last.name);
+            out.writeLong(last.size);
+            out.writeLong(last.modified);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    private static Key decodeCursor(String cursor, byte sort, boolean descending, String prefix) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)))) {
+            if (in.readByte() != CURSOR_VERSION || in.readByte() != sort || in.readBoolean() != descending
+                    || !in.readUTF().equals(prefix)) {
+                throw new IllegalArgumentException("Cursor belongs to a different listing");
+            }
+            return new Key(in.readUTF(), in.readLong(), in.readLong());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    /** Sort key of an entry; size and time are 0 when sorting by name, which does not read them. */
+    private static final class Key {
+        final String name;
+        final long size;
+        final long modified;
+        final MetadataCache.Entry entry;
+
+        Key(MetadataCache.Entry entry) {
+            this.name = entry.name;
+            this.size = entry.stat == null ? 0 : entry.stat.size;
+            this.modified = entry.stat == null ? 0 : entry.stat.lastModified;
+            this.entry = entry;
+        }
+
+        Key(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.entry = null;
+        }
+    }
+}
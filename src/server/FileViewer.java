@@ -0,0 +1,324 @@
+package server;
+
+import utils.FileTransfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves pages of text files without loading them.
+ * <p>
+ * Each viewed file gets a sparse line index: the byte offset of every
+ * {@link #STRIDE}th line. It is built lazily, only as far as the furthest page
+ * requested so far, so opening a huge file is as cheap as opening a small one,
+ * and jumping to line {@code n} costs one index lookup plus a scan of fewer than
+ * {@code STRIDE} lines. Indexes are cached per path and discarded when the file's
+ * size or modification time changes. Tail mode reads backwards from the end and
+ * needs no index at all. Files held by the {@link ReadCache} are paged from memory.
+ */
+class FileViewer {
+    static final int STRIDE = 1024;
+    static final int MAX_PAGE_LINES = 1000;
+    /** Longer lines are cut off, so one pathological line cannot exhaust memory. */
+    static final int MAX_LINE_BYTES = FileTransfer.CHUNK_SIZE;
+
+    private final Map<Path, LineIndex> indexes;
+    private final ReadCache cache;
+
+    FileViewer(int cachedFiles, ReadCache cache) {
+        this.cache = cache;
+        this.indexes = Collections.synchronizedMap(new LinkedHashMap<Path, LineIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+                return size() > cachedFiles;
+            }
+        });
+    }
+
+    /** Up to {@code count} lines starting at line {@code firstLine} (0-based). */
+    Page page(Path file, long firstLine, int count) throws IOException {
+        int lineCount = Math.max(1, Math.min(count, MAX_PAGE_LINES));
+        return read(file, source -> {
+            LineIndex index = indexFor(file);
+            long offset = index.offsetOf(source, firstLine);
+            List<String> lines = offset < 0 ? List.of() : readLines(source, offset, lineCount);
+            return new Page(firstLine, index.totalLines(), lines);
+        });
+    }
+
+    /** The last {@code count} lines. */
+    Page tail(Path file, int count) throws IOException {
+        int lineCount = Math.max(1, Math.min(count, MAX_PAGE_LINES));
+        return read(file, source -> {
+            long offset = tailOffset(source, lineCount);
+            List<String> lines = readLines(source, offset, lineCount);
+            LineIndex index = indexFor(file);
+            long total = index.totalLines();
+            return new Page(total < 0 ? -1 : total - lines.size(), total, lines);
+        });
+    }
+
+    /** Drops the cached index of {@code file}; the size/mtime check catches most changes, this catches the rest. */
+    void invalidate(Path file) {
+        indexes.remove(file.toAbsolutePath().normalize());
+    }
+
+    private <T> T read(Path file, Reader<T> reader) throws IOException {
+        ByteBuffer cached = cache.get(file);
+        if (cached != null) {
+            return reader.read(Source.of(cached));
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return reader.read(Source.of(channel));
+        }
+    }
+
+    private LineIndex indexFor(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        synchronized (indexes) {
+            LineIndex index = indexes.get(key);
+            if (index == null || index.size != size || index.modified != modified) {
+                index = new LineIndex(size, modified);
+                indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private static List<String> readLines(Source source, long offset, int count) throws IOException {
+        List<String> lines = new ArrayList<>(count);
+        ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        boolean truncated = false;
+        long position = offset;
+        while (lines.size() < count) {
+            buffer.clear();
+            int read = source.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            position += read;
+            byte[] data = buffer.array();
+            for (int i = 0; i < read && lines.size() < count; i++) {
+                if (data[i] == '\n') {
+                    lines.add(decode(line, lineLength, truncated));
+                    lineLength = 0;
+                    truncated = false;
+                } else if (lineLength < MAX_LINE_BYTES) {
+                    if (lineLength == line.length) {
+                        line = Arrays.copyOf(line, Math.min(line.length * 2, MAX_LINE_BYTES));
+                    }
+                    line[lineLength++] = data[i];
+                } else {
+                    truncated = true;
+                }
+            }
+        }
+        if (lines.size() < count && (lineLength > 0 || truncated)) {
+            lines.add(decode(line, lineLength, truncated));
+        }
+        return lines;
+    }
+
+    private static String decode(byte[] line, int length, boolean truncated) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        String text = new String(line, 0, length, StandardCharsets.UTF_8);
+        return truncated ? text + " [...]" : text;
+    }
+
+    /** Offset of the start of the {@code count}th line from the end, scanning backwards. */
+    private static long tailOffset(Source source, int count) throws IOException {
+        long end = source.size();
+        if (end == 0) {
+            return 0;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        source.read(last, end - 1);
+        // A trailing newline ends the last line rather than starting an empty one.
+        int newlinesToSkip = last.get(0) == '\n' ? count + 1 : count;
+        ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+        long position = end;
+        while (position > 0) {
+            int length = (int) Math.min(buffer.capacity(), position);
+            position -= length;
+            buffer.clear().limit(length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + buffer.position()) == -1) {
+                    break;
+                }
+            }
+            byte[] data = buffer.array();
+            for (int i = buffer.position() - 1; i >= 0; i--) {
+                if (data[i] == '\n' && --newlinesToSkip == 0) {
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /** Lazily extended sparse index of one version of a file. */
+    private static final class LineIndex {
+        final long size;
+        final long modified;
+        private long[] checkpoints = new long[16];
+        private int checkpointCount = 1;
+        /** Lines fully scanned so far and the offset just after the last of them. */
+        private long scannedLines;
+        private long scannedOffset;
+        private boolean complete;
+
+        LineIndex(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+            this.complete = size == 0;
+        }
+
+        /** Byte offset of {@code line}, or -1 if the file has fewer lines. */
+        synchronized long offsetOf(Source source, long line) throws IOException {
+            int checkpoint = (int) Math.min(line / STRIDE, Integer.MAX_VALUE);
+            while (checkpoint >= checkpointCount && !complete) {
+                scan(source, (long) checkpointCount * STRIDE);
+            }
+            if (checkpoint >= checkpointCount) {
+                return -1;
+            }
+            long offset = checkpoints[checkpoint];
+            long toSkip = line - (long) checkpoint * STRIDE;
+            if (toSkip == 0) {
+                return offset < size ? offset : -1;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+            while (offset < size) {
+                buffer.clear();
+                int read = source.read(buffer, offset);
+                if (read <= 0) {
+                    break;
+                }
+                byte[] data = buffer.array();
+                for (int i = 0; i < read; i++) {
+                    if (data[i] == '\n' && --toSkip == 0) {
+                        long start = offset + i + 1;
+                        return start < size ? start : -1;
+                    }
+                }
+                offset += read;
+            }
+            return -1;
+        }
+
+        /** Total number of lines, or -1 while the file has not been scanned to the end. */
+        synchronized long totalLines() {
+            if (!complete) {
+                return -1;
+            }
+            return scannedOffset < size ? scannedLines + 1 : scannedLines;
+        }
+
+        /** Scans forward until {@code targetLine} has been passed or the end of the file is reached. */
+        private void scan(Source source, long targetLine) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+            long position = scannedOffset;
+            while (scannedLines < targetLine) {
+                buffer.clear();
+                int read = position < size ? source.read(buffer, position) : -1;
+                if (read <= 0) {
+                    complete = true;
+                    return;
+                }
+                byte[] data = buffer.array();
+                for (int i = 0; i < read; i++) {
+                    if (data[i] == '\n') {
+                        scannedLines++;
+                        scannedOffset = position + i + 1;
+                        if (scannedLines % STRIDE == 0) {
+                            addCheckpoint(scannedOffset);
+                        }
+                    }
+                }
+                position += read;
+            }
+        }
+
+        private void addCheckpoint(long offset) {
+            if (checkpointCount == checkpoints.length) {
+                checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+            }
+            checkpoints[checkpointCount++] = offset;
+        }
+    }
+
+    private interface Reader<T> {
+        T read(Source source) throws IOException;
+    }
+
+    /** Positional reads from an open file or from its cached content. */
+    private interface Source {
+        int read(ByteBuffer target, long position) throws IOException;
+
+        long size() throws IOException;
+
+        static Source of(FileChannel channel) {
+            return new Source() {
+                @Override
+                public int read(ByteBuffer target, long position) throws IOException {
+                    return channel.read(target, position);
+                }
+
+                @Override
+                public long size() throws IOException {
+                    return channel.size();
+                }
+            };
+        }
+
+        static Source of(ByteBuffer content) {
+            return new Source() {
+                @Override
+                public int read(ByteBuffer target, long position) {
+                    if (position >= content.limit()) {
+                        return -1;
+                    }
+                    int length = (int) Math.min(target.remaining(), content.limit() - position);
+                    target.put(content.slice((int) position, length));
+                    return length;
+                }
+
+                @Override
+                public long size() {
+                    return content.limit();
+                }
+            };
+        }
+    }
+
+    static final class Page {
+        final long firstLine;
+        final long totalLines;
+        final List<String> lines;
+
+        Page(long firstLine, long totalLines, List<String> lines) {
+            this.firstLine = firstLine;
+            this.totalLines = totalLines;
+            this.lines = lines;
+        }
+    }
+}
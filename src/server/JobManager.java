@@ -0,0 +1,228 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs long operations in the background, detached from the session that asked for them.
+ * <p>
+ * A fixed set of worker threads takes queued jobs highest priority first, oldest first
+ * within a priority, skipping jobs whose owner already has {@code perUserLimit} running,
+ * so one user's batch of copies cannot hold every worker. The queue is bounded and a
+ * submission beyond it is refused rather than parked. Jobs keep running when their
+ * session goes away; the owner can look them up again by id from any session. A few
+ * finished jobs per user are kept so their outcome can still be read.
+ */
+class JobManager {
+    private static final Logger LOGGER = Logger.getLogger(JobManager.class.getName());
+    private static final int KEEP_FINISHED = 20;
+
+    enum Priority { HIGH, NORMAL, LOW }
+
+    /** In the order of the {@code Protocol.JOB_*} codes, which are their ordinals. */
+    enum State { QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED }
+
+    /** The operation itself; returns the message reported on success. */
+    interface Work {
+        String run(Job job) throws IOException;
+    }
+
+    private final int workers;
+    private final int maxQueued;
+    private final int perUserLimit;
+    private final TreeSet<Job> queue = new TreeSet<>(Comparator.<Job, Priority>comparing(job -> job.priority)
+            .thenComparingLong(job -> job.id));
+    private final Map<Long, Job> jobs = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, Deque<Job>> finished = new HashMap<>();
+    private long nextId = 1;
+
+    JobManager(int workers, int maxQueued, int perUserLimit) {
+        this.workers = workers;
+        this.maxQueued = maxQueued;
+        this.perUserLimit = perUserLimit;
+    }
+
+    void start() {
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "job-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** Queues {@code work}; throws {@link IllegalStateException} if the queue is full. */
+    synchronized Job submit(String owner, String description, Priority priority, Work work) {
+        if (queue.size() >= maxQueued) {
+            throw new IllegalStateException("Too many jobs waiting, try again later.");
+        }
+        Job job = new Job(nextId++, owner, description, priority, work);
+        jobs.put(job.id, job);
+        queue.add(job);
+        notifyAll();
+        return job;
+    }
+
+    /** The job with this id if it belongs to {@code owner}, else null. */
+    synchronized Job find(String owner, long id) {
+        Job job = jobs.get(id);
+        return job != null && job.owner.equals(owner) ? job : null;
+    }
+
+    synchronized List<Job> list(String owner) {
+        List<Job> result = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.owner.equals(owner)) {
+                result.add(job);
+            }
+        }
+        result.sort(Comparator.comparingLong(job -> job.id));
+        return result;
+    }
+
+    /** Drops a queued job, or interrupts a running one; returns false if it had already finished. */
+    synchronized boolean cancel(Job job) {
+        if (job.state == State.QUEUED) {
+            queue.remove(job);
+            finish(job, State.CANCELLED, "Cancelled before it started.");
+            return true;
+        }
+        if (job.state == State.RUNNING) {
+            job.cancelled = true;
+            job.worker.interrupt();
+            return true;
+        }
+        return false;
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            synchronized (this) {
+                while ((job = next()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                job.state = State.RUNNING;
+                job.worker = Thread.currentThread();
+                running.merge(job.owner, 1, Integer::sum);
+            }
+            State outcome;
+            String message;
+            try {
+                message = job.work.run(job);
+                outcome = State.SUCCEEDED;
+            } catch (InterruptedIOException e) {
+                outcome = job.cancelled ? State.CANCELLED : State.FAILED;
+                message = job.cancelled ? "Stopped while running." : e.getMessage();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Job " + job.id + " (" + job.description + ") failed: ", e);
+                outcome = State.FAILED;
+                message = e.getMessage();
+            }
+            Thread.interrupted(); // a cancel that came in after the work finished
+            synchronized (this) {
+                running.merge(job.owner, -1, Integer::sum);
+                job.worker = null;
+                finish(job, outcome, message);
+                notifyAll();
+            }
+        }
+    }
+
+    /** The first queued job whose owner is below the running limit. */
+    private Job next() {
+        for (Iterator<Job> it = queue.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if (running.getOrDefault(job.owner, 0) < perUserLimit) {
+                it.remove();
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private void finish(Job job, State state, String message) {
+        synchronized (job) {
+            job.state = state;
+            job.message = message == null ? state.toString() : message;
+            job.notifyAll();
+        }
+        Deque<Job> done = finished.computeIfAbsent(job.owner, owner -> new ArrayDeque<>());
+        done.addLast(job);
+        if (done.size() > KEEP_FINISHED) {
+            jobs.remove(done.removeFirst().id);
+        }
+    }
+
+    static final class Job {
+        final long id;
+        final String owner;
+        final String description;
+        final Priority priority;
+        private final Work work;
+        private volatile State state = State.QUEUED;
+        private volatile long progress;
+        private volatile String message = "";
+        private volatile boolean cancelled;
+        private Thread worker;
+
+        private Job(long id, String owner, String description, Priority priority, Work work) {
+            this.id = id;
+            this.owner = owner;
+            this.description = description;
+            this.priority = priority;
+            this.work = work;
+        }
+
+        State state() {
+            return state;
+        }
+
+        boolean isDone() {
+            State current = state;
+            return current != State.QUEUED && current != State.RUNNING;
+        }
+
+        /** Entries processed so far. */
+        long progress() {
+            return progress;
+        }
+
+        void progress(long entries) {
+            progress = entries;
+        }
+
+        /** Outcome once the job is done, empty before. */
+        String message() {
+            return message;
+        }
+
+        /** Waits up to {@code millis} for the job to finish; returns whether it has. */
+        synchronized boolean awaitDone(long millis) throws InterruptedIOException {
+            if (!isDone()) {
+                try {
+                    wait(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for job " + id);
+                }
+            }
+            return isDone();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded cache of file attributes and directory listings.
+ * <p>
+ * Entries are grouped by directory: a path's attributes live with its parent, next
+ * to the parent's listing, and each cached directory is registered with a
+ * {@link WatchService}. A change under a directory, whether made by this server
+ * ({@link #invalidate}) or by anything else (a watch event), drops that
+ * directory's listing and the changed child's attributes. Directories are evicted
+ * least recently used first once the total number of cached entries or watched
+ * directories exceeds its limit, which also releases their watch.
+ * <p>
+ * Reads are done outside the lock; a directory's version counter stops a read that
+ * raced with an invalidation from installing stale data.
+ */
+class MetadataCache {
+    private static final Logger LOGGER = Logger.getLogger(MetadataCache.class.getName());
+
+    private final int maxDirectories;
+    private final int maxEntries;
+    private final Map<Path, Directory> directories = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<WatchKey, Directory> directoriesByKey = new HashMap<>();
+    private int cachedEntries;
+    private WatchService watchService;
+
+    MetadataCache(int maxDirectories, int maxEntries) {
+        this.maxDirectories = maxDirectories;
+        this.maxEntries = maxEntries;
+    }
+
+    /** Starts watching for outside changes; until then, or where watching is unsupported, nothing is cached. */
+    void start() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.WARNING, "File watching unavailable, metadata will not be cached: ", e);
+            return;
+        }
+        Thread watcher = new Thread(this::watch, "metadata-watch");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing watch service: ", e);
+            }
+        }
+    }
+
+    FileStat stat(Path path) throws IOException {
+        Path key = keyOf(path);
+        Path parent = key.getParent();
+        if (parent == null) {
+            return FileStat.read(key);
+        }
+        String name = key.getFileName().toString();
+        Directory directory;
+        long version;
+        synchronized (this) {
+            directory = directories.get(parent);
+            if (directory != null) {
+                FileStat cached = directory.stats.get(name);
+                if (cached != null) {
+                    return cached;
+                }
+                if (directory.listing != null) {
+                    return FileStat.MISSING;
+                }
+            } else {
+                directory = watch(parent);
+            }
+            version = directory == null ? 0 : directory.version;
+        }
+        FileStat stat = FileStat.read(key);
+        synchronized (this) {
+            if (isCurrent(directory, version) && directory.stats.put(name, stat) == null) {
+                cachedEntries++;
+                evict();
+            }
+        }
+        return stat;
+    }
+
+    /**
+     * Passes every entry of {@code dir} to {@code action}, in directory order. A cached
+     * listing is replayed from memory. Otherwise the directory is streamed, never held
+     * whole: attributes are read only if {@code withAttributes} (the entries carry a null
+     * stat otherwise), and the listing is cached afterwards if it had them and was small
+     * enough.
+     */
+    void scan(Path dir, boolean withAttributes, Consumer<Entry> action) throws IOException {
+        Path key = keyOf(dir);
+        Directory directory;
+        long version;
+        List<Entry> cached = null;
+        synchronized (this) {
+            directory = directories.get(key);
+            if (directory != null && directory.listing != null) {
+                cached = directory.listing;
+            } else if (directory == null) {
+                directory = watch(key);
+            }
+            version = directory == null ? 0 : directory.version;
+        }
+        if (cached != null) {
+            cached.forEach(action);
+            return;
+        }
+        // Very large directories are not worth evicting everything else for.
+        List<Entry> collected = withAttributes && directory != null ? new ArrayList<>() : null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(key)) {
+            for (Path child : stream) {
+                Entry entry = new Entry(child.getFileName().toString(), withAttributes ? FileStat.read(child) : null);
+                action.accept(entry);
+                if (collected != null) {
+                    collected.add(entry);
+                    if (collected.size() > maxEntries / 4) {
+                        collected = null;
+                    }
+                }
+            }
+        }
+        if (collected == null) {
+            return;
+        }
+        synchronized (this) {
+            if (isCurrent(directory, version)) {
+                cachedEntries -= directory.stats.size();
+                directory.stats.clear();
+                for (Entry entry : collected) {
+                    directory.stats.put(entry.name, entry.stat);
+                }
+                directory.listing = List.copyOf(collected);
+                cachedEntries += collected.size();
+                evict();
+            }
+        }
+    }
+
+    /** Forgets {@code path} and its parent's listing, and everything below it if it was a directory. */
+    synchronized void invalidate(Path path) {
+        Path key = keyOf(path);
+        invalidateEntry(key);
+        Iterator<Directory> it = directories.values().iterator();
+        while (it.hasNext()) {
+            Directory directory = it.next();
+            if (directory.path.startsWith(key)) {
+                it.remove();
+                drop(directory);
+            }
+        }
+    }
+
+    /** Forgets the attributes of {@code key} and its parent's listing. */
+    private void invalidateEntry(Path key) {
+        Path parent = key.getParent();
+        Directory directory = parent == null ? null : directories.get(parent);
+        if (directory != null) {
+            directory.listing = null;
+            directory.version++;
+            if (directory.stats.remove(key.getFileName().toString()) != null) {
+                cachedEntries--;
+            }
+        }
+    }
+
+    /** Registers a watch on {@code dir} and gives it a cache slot, or returns null if it cannot be watched. */
+    private Directory watch(Path dir) {
+        if (watchService == null) {
+            return null;
+        }
+        WatchKey watchKey;
+        try {
+            watchKey = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOGGER.log(Level.FINE, "Not caching " + dir + ": ", e);
+            return null;
+        }
+        Directory directory = new Directory(dir, watchKey);
+        directories.put(dir, directory);
+        directoriesByKey.put(watchKey, directory);
+        evict();
+        return directories.get(dir) == directory ? directory : null;
+    }
+
+    /** True if nothing invalidated {@code directory} since {@code version} was read. */
+    private boolean isCurrent(Directory directory, long version) {
+        return directory != null && directories.get(directory.path) == directory && directory.version == version;
+    }
+
+    private void evict() {
+        Iterator<Directory> it = directories.values().iterator();
+        while ((cachedEntries > maxEntries || directories.size() > maxDirectories) && it.hasNext()) {
+            Directory directory = it.next();
+            it.remove();
+            drop(directory);
+        }
+    }
+
+    private void drop(Directory directory) {
+        cachedEntries -= directory.stats.size();
+        directory.version++;
+        directory.watchKey.cancel();
+        directoriesByKey.remove(directory.watchKey);
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                Directory directory = directoriesByKey.get(watchKey);
+                List<WatchEvent<?>> events = watchKey.pollEvents();
+                if (directory != null) {
+                    for (WatchEvent<?> event : events) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            invalidate(directory.path);
+                        } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                            invalidateEntry(directory.path.resolve((Path) event.context()));
+                        } else {
+                            invalidate(directory.path.resolve((Path) event.context()));
+                        }
+                    }
+                }
+                if (!watchKey.reset() && directory != null && directories.get(directory.path) == directory) {
+                    directories.remove(directory.path);
+                    drop(directory);
+                }
+            }
+        }
+    }
+
+    private static Path keyOf(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    private static final class Directory {
+        final Path path;
+        final WatchKey watchKey;
+        final Map<String, FileStat> stats = new HashMap<>();
+        List<Entry> listing;
+        long version = 1;
+
+        Directory(Path path, WatchKey watchKey) {
+            this.path = path;
+            this.watchKey = watchKey;
+        }
+    }
+
+    /** Attributes of a path at the time it was read; {@link #MISSING} if it did not exist. */
+    static final class FileStat {
+        static final FileStat MISSING = new FileStat(false, false, false, 0, 0);
+
+        final boolean exists;
+        final boolean directory;
+        final boolean regularFile;
+        final long size;
+        final long lastModified;
+
+        private FileStat(boolean exists, boolean directory, boolean regularFile, long size, long lastModified) {
+            this.exists = exists;
+            this.directory = directory;
+            this.regularFile = regularFile;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static FileStat read(Path path) throws IOException {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new FileStat(true, attributes.isDirectory(), attributes.isRegularFile(),
+                        attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (NoSuchFileException e) {
+                return MISSING;
+            }
+        }
+    }
+
+    /** A directory entry; {@code stat} is null when it was listed without attributes. */
+    static final class Entry {
+        final String name;
+        final FileStat stat;
+
+        Entry(String name, FileStat stat) {
+            this.name = name;
+            this.stat = stat;
+        }
+    }
+}
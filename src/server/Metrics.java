@@ -0,0 +1,195 @@
+package server;
+
+import utils.LatencyHistogram;
+import utils.Protocol;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, gauges and latency histograms for the whole server.
+ * <p>
+ * Everything on the recording side is a plain atomic or a {@link LatencyHistogram}, so
+ * a command pays for two {@link System#nanoTime} calls and a few uncontended atomic
+ * adds. Command histograms are created on first use, one per opcode.
+ */
+class Metrics implements MetricsMXBean {
+    enum Disk {
+        COMMIT("blob commit"), LINK("blob link"), COPY("blob copy"), DELETE("blob delete"), DETACH("blob detach");
+
+        final String label;
+
+        Disk(String label) {
+            this.label = label;
+        }
+    }
+
+    private final AtomicReferenceArray<LatencyHistogram> commands = new AtomicReferenceArray<>(256);
+    private final LatencyHistogram[] disk = new LatencyHistogram[Disk.values().length];
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger transfers = new AtomicInteger();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < disk.length; i++) {
+            disk[i] = new LatencyHistogram();
+        }
+    }
+
+    void sessionOpened() {
+        sessions.incrementAndGet();
+    }
+
+    void sessionClosed() {
+        sessions.decrementAndGet();
+    }
+
+    void transferStarted() {
+        transfers.incrementAndGet();
+    }
+
+    void transferEnded() {
+        transfers.decrementAndGet();
+    }
+
+    /** Records a command that started at {@code startNanos}. */
+    void command(byte opcode, long startNanos) {
+        int index = opcode & 0xFF;
+        LatencyHistogram histogram = commands.get(index);
+        if (histogram == null) {
+            commands.compareAndSet(index, null, new LatencyHistogram());
+            histogram = commands.get(index);
+        }
+        histogram.recordSince(startNanos);
+    }
+
+    void disk(Disk operation, long startNanos) {
+        disk[operation.ordinal()].recordSince(startNanos);
+    }
+
+    /** Counts bytes sent without passing through a {@link #counting(OutputStream) counting} stream, e.g. with {@code transferTo}. */
+    void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    InputStream counting(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    OutputStream counting(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public int getActiveTransfers() {
+        return transfers.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public Map<String, Latency> getCommandLatencies() {
+        Map<String, Latency> result = new LinkedHashMap<>();
+        for (int i = 0; i < commands.length(); i++) {
+            LatencyHistogram histogram = commands.get(i);
+            if (histogram != null) {
+                result.put(Protocol.nameOf((byte) i), latency(histogram));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Latency> getDiskLatencies() {
+        Map<String, Latency> result = new LinkedHashMap<>();
+        for (Disk operation : Disk.values()) {
+            result.put(operation.label, latency(disk[operation.ordinal()]));
+        }
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Sessions: %d active, transfers: %d active%n", getActiveSessions(), getActiveTransfers()));
+        report.append(String.format("Bytes: %,d in, %,d out%n", getBytesIn(), getBytesOut()));
+        table(report, "Command", getCommandLatencies());
+        table(report, "Disk", getDiskLatencies());
+        return report.toString();
+    }
+
+    private static Latency latency(LatencyHistogram histogram) {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        return new Latency(snapshot.getCount(), micros(snapshot.getMean()), micros(snapshot.valueAt(0.50)),
+                micros(snapshot.valueAt(0.90)), micros(snapshot.valueAt(0.99)), micros(snapshot.valueAt(0.999)),
+                micros(snapshot.getMax()));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static void table(StringBuilder report, String title, Map<String, Latency> rows) {
+        report.append(String.format("%n%-20s %9s %10s %10s %10s %10s %10s %10s  (ms)%n",
+                title, "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (Map.Entry<String, Latency> row : rows.entrySet()) {
+            Latency latency = row.getValue();
+            report.append(String.format("%-20s %9d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f%n", row.getKey(),
+                    latency.getCount(), latency.getMeanMicros() / 1000, latency.getP50Micros() / 1000,
+                    latency.getP90Micros() / 1000, latency.getP99Micros() / 1000, latency.getP999Micros() / 1000,
+                    latency.getMaxMicros() / 1000));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import javax.management.ConstructorParameters;
+import java.util.Map;
+
+/**
+ * Server activity, published over JMX as {@code server:type=Metrics}. The same figures
+ * are available to admins through the {@code stats} command.
+ */
+public interface MetricsMXBean {
+    int getActiveSessions();
+
+    /** Upload, download and other transfer commands being served right now. */
+    int getActiveTransfers();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /** Service time of each command, from its opcode arriving to its reply being flushed. */
+    Map<String, Latency> getCommandLatencies();
+
+    /** Time spent in each kind of blob store operation. */
+    Map<String, Latency> getDiskLatencies();
+
+    /** Everything above as a plain-text table. */
+    String getReport();
+
+    /** Count and distribution of one histogram, in microseconds. */
+    final class Latency {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double p999Micros;
+        private final double maxMicros;
+
+        @ConstructorParameters({"count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros"})
+        public Latency(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros,
+                       double p999Micros, double maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.p999Micros = p999Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getP999Micros() {
+            return p999Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+    }
+}
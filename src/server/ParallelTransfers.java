@@ -0,0 +1,166 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Files being moved over several connections at once.
+ * <p>
+ * A transfer is started on the owner's session and named by a random token. Its
+ * parts then arrive on other connections that only present the token, each covering
+ * one byte range. Upload parts are written straight into one shared temp file with
+ * positioned writes; the transfer remembers which ranges have arrived, so the commit
+ * can tell whether the file is complete before it checks the content hash; a download
+ * remembers the ranges it has served the same way and ends once all of them have gone
+ * out. Transfers with no part in flight that nobody has touched for
+ * {@link #IDLE_MILLIS} are dropped, with their temp file.
+ */
+class ParallelTransfers {
+    private static final Logger LOGGER = Logger.getLogger(ParallelTransfers.class.getName());
+    static final long IDLE_MILLIS = 10 * 60 * 1000;
+
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    /** Starts an upload of {@code size} bytes into {@code temp}, to be filed as {@code target}. */
+    Transfer beginUpload(String owner, Path temp, Path target, long size, String hash) throws IOException {
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        return register(new Transfer(newToken(), owner, temp, target, size, hash, channel));
+    }
+
+    Transfer beginDownload(String owner, Path file, long size) {
+        return register(new Transfer(newToken(), owner, file, null, size, null, null));
+    }
+
+    /** The live transfer with this token, or null. */
+    Transfer get(String token) {
+        Transfer transfer = transfers.get(token);
+        if (transfer != null) {
+            transfer.lastUsed = System.currentTimeMillis();
+        }
+        return transfer;
+    }
+
+    /** Marks a part as moving data, so the transfer is not dropped as idle however long the part takes. */
+    void startPart(Transfer transfer) {
+        transfer.changeActiveParts(1);
+    }
+
+    /** Marks a part as done; a download whose every range has now been served ends here. */
+    void endPart(Transfer transfer) {
+        transfer.changeActiveParts(-1);
+        if (!transfer.isUpload() && transfer.isComplete()) {
+            end(transfer, true);
+        }
+    }
+
+    /** Forgets the transfer; an unfinished upload's temp file is deleted. */
+    void end(Transfer transfer, boolean keepFile) {
+        if (transfers.remove(transfer.token) == null) {
+            return;
+        }
+        try {
+            if (transfer.channel != null) {
+                transfer.channel.close();
+            }
+            if (transfer.isUpload() && !keepFile) {
+                Files.deleteIfExists(transfer.file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error cleaning up transfer " + transfer.file, e);
+        }
+    }
+
+    private Transfer register(Transfer transfer) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Transfer> it = transfers.values().iterator(); it.hasNext(); ) {
+            Transfer idle = it.next();
+            if (idle.activeParts() == 0 && now - idle.lastUsed > IDLE_MILLIS) {
+                LOGGER.info("Dropping idle transfer of " + idle.file);
+                end(idle, false);
+            }
+        }
+        transfers.put(transfer.token, transfer);
+        return transfer;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    static final class Transfer {
+        final String token;
+        final String owner;
+        /** The temp file of an upload, the source of a download. */
+        final Path file;
+        /** Where an upload goes once complete; null for downloads. */
+        final Path target;
+        final long size;
+        final String hash;
+        final FileChannel channel;
+        /** Received (or, for a download, served) ranges, start to end, merged as they arrive. */
+        private final TreeMap<Long, Long> received = new TreeMap<>();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private int activeParts;
+
+        private Transfer(String token, String owner, Path file, Path target, long size, String hash, FileChannel channel) {
+            this.token = token;
+            this.owner = owner;
+            this.file = file;
+            this.target = target;
+            this.size = size;
+            this.hash = hash;
+            this.channel = channel;
+        }
+
+        boolean isUpload() {
+            return channel != null;
+        }
+
+        synchronized void received(long start, long length) {
+            long end = start + length;
+            Map.Entry<Long, Long> before = received.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            for (Map.Entry<Long, Long> next = received.ceilingEntry(start); next != null && next.getKey() <= end;
+                 next = received.ceilingEntry(start)) {
+                end = Math.max(end, next.getValue());
+                received.remove(next.getKey());
+            }
+            received.put(start, end);
+        }
+
+        private synchronized void changeActiveParts(int delta) {
+            activeParts += delta;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        private synchronized int activeParts() {
+            return activeParts;
+        }
+
+        /** True once every byte from 0 to {@link #size} has arrived. */
+        synchronized boolean isComplete() {
+            if (size == 0) {
+                return true;
+            }
+            Map.Entry<Long, Long> first = received.firstEntry();
+            return first != null && first.getKey() == 0 && first.getValue() >= size;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * In-memory index of every path under the upload folder.
+ * <p>
+ * Mutations touch only the affected entry (or subtree, for directory copies, moves
+ * and deletes) and are appended to a change log. Every {@link #COMPACT_EVERY} records
+ * the index is written out as a snapshot, one path per line, and the log is reset.
+ * On startup the snapshot is loaded and the log replayed on top of it; a snapshot
+ * without the {@link #SNAPSHOT_HEADER} (the old full-dump format) triggers one walk
+ * of the upload folder instead.
+ */
+class PathIndex {
+    private static final Logger LOGGER = Logger.getLogger(PathIndex.class.getName());
+    static final int COMPACT_EVERY = 10_000;
+    private static final String SNAPSHOT_HEADER = "#path-index v1";
+
+    private static final char ADD = 'A';
+    private static final char DELETE = 'D';
+    private static final char MOVE = 'M';
+    private static final char COPY = 'C';
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path root;
+    private final Path rootAbsolute;
+    private final NavigableSet<String> paths = new ConcurrentSkipListSet<>();
+    private final Object writeLock = new Object();
+    private BufferedWriter log;
+    private int pendingRecords;
+
+    PathIndex(Path snapshotFile, Path logFile, Path root) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.root = root.normalize();
+        this.rootAbsolute = root.toAbsolutePath().normalize();
+    }
+
+    void load() throws IOException {
+        synchronized (writeLock) {
+            paths.clear();
+            if (hasSnapshot()) {
+                try (Stream<String> lines = Files.lines(snapshotFile, StandardCharsets.UTF_8)) {
+                    lines.filter(line -> !line.isEmpty() && line.charAt(0) != '#').forEach(paths::add);
+                }
+                replayLog();
+            } else {
+                rebuild();
+            }
+            compact();
+        }
+    }
+
+    private boolean hasSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return false;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+            return SNAPSHOT_HEADER.equals(reader.readLine());
+        }
+    }
+
+    /** Walks the upload folder once; only used when there is no snapshot to start from. */
+    private void rebuild() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(path -> !path.equals(root)).forEach(path -> paths.add(path.toString()));
+        }
+    }
+
+    private void replayLog() throws IOException {
+        if (!Files.exists(logFile)) {
+            return;
+        }
+        int applied = 0;
+        try (BufferedReader reader = Files.newBufferedReader(logFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) {
+                    continue; // torn write at the tail of the log
+                }
+                String body = line.substring(1);
+                switch (line.charAt(0)) {
+                    case ADD:
+                        paths.add(body);
+                        break;
+                    case DELETE:
+                        removeSubtree(body);
+                        break;
+                    case MOVE:
+                    case COPY:
+                        int tab = body.indexOf('\t');
+                        if (tab > 0) {
+                            if (line.charAt(0) == MOVE) {
+                                moveSubtree(body.substring(0, tab), body.substring(tab + 1));
+                            } else {
+                                copySubtree(body.substring(0, tab), body.substring(tab + 1));
+                            }
+                        }
+                        break;
+                    default:
+                        LOGGER.warning("Skipping unknown path log record: " + line);
+                        continue;
+                }
+                applied++;
+            }
+        }
+        LOGGER.info("Replayed " + applied + " path log records.");
+    }
+
+    void add(Path path) {
+        String key = keyOf(path);
+        if (key == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (paths.add(key)) {
+                append(ADD + key);
+            }
+        }
+    }
+
+    /** Adds several paths with a single write to the change log. */
+    void addAll(Collection<Path> added) {
+        synchronized (writeLock) {
+            List<String> records = new ArrayList<>();
+            for (Path path : added) {
+                String key = keyOf(path);
+                if (key != null && paths.add(key)) {
+                    records.add(ADD + key);
+                }
+            }
+            append(records);
+        }
+    }
+
+    /** Removes several paths, with their subtrees, with a single write to the change log. */
+    void removeAll(Collection<Path> removed) {
+        synchronized (writeLock) {
+            List<String> records = new ArrayList<>();
+            for (Path path : removed) {
+                String key = keyOf(path);
+                if (key != null) {
+                    removeSubtree(key);
+                    records.add(DELETE + key);
+                }
+            }
+            append(records);
+        }
+    }
+
+    void remove(Path path) {
+        String key = keyOf(path);
+        if (key == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            removeSubtree(key);
+            append(DELETE + key);
+        }
+    }
+
+    void move(Path source, Path target) {
+        String from = keyOf(source);
+        String to = keyOf(target);
+        if (from == null && to == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (from == null) {
+                paths.add(to);
+                append(ADD + to);
+            } else if (to == null) {
+                removeSubtree(from);
+                append(DELETE + from);
+            } else {
+                moveSubtree(from, to);
+                append(MOVE + from + '\t' + to);
+            }
+        }
+    }
+
+    /** Adds {@code target} as a copy of {@code source} and everything indexed below it, as one log record. */
+    void copy(Path source, Path target) {
+        String from = keyOf(source);
+        String to = keyOf(target);
+        if (from == null || to == null) {
+            return;
+        }
+        synchronized (writeLock) {
+            copySubtree(from, to);
+            append(COPY + from + '\t' + to);
+        }
+    }
+
+    boolean contains(Path path) {
+        String key = keyOf(path);
+        return key != null && paths.contains(key);
+    }
+
+    int size() {
+        return paths.size();
+    }
+
+    /** Entries at or below {@code path}, in sorted order. */
+    List<String> subtree(Path path) {
+        String key = keyOf(path);
+        List<String> result = new ArrayList<>();
+        if (key == null) {
+            return result;
+        }
+        if (paths.contains(key)) {
+            result.add(key);
+        }
+        result.addAll(descendants(key));
+        return result;
+    }
+
+    void close() {
+        synchronized (writeLock) {
+            compact();
+            closeLog();
+        }
+    }
+
+    private NavigableSet<String> descendants(String key) {
+        String prefix = key + File.separatorChar;
+        return paths.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private void removeSubtree(String key) {
+        paths.remove(key);
+        descendants(key).clear();
+    }
+
+    private void copySubtree(String from, String to) {
+        List<String> copied = new ArrayList<>(descendants(from));
+        paths.add(to);
+        for (String child : copied) {
+            paths.add(to + child.substring(from.length()));
+        }
+    }
+
+    private void moveSubtree(String from, String to) {
+        List<String> moved = new ArrayList<>(descendants(from));
+        removeSubtree(from);
+        paths.add(to);
+        for (String child : moved) {
+            paths.add(to + child.substring(from.length()));
+        }
+    }
+
+    /** Maps a path to its index key, the same form as {@code Paths.get(UPLOAD_FOLDER, ...)}; null if outside the root. */
+    private String keyOf(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        if (!absolute.startsWith(rootAbsolute) || absolute.equals(rootAbsolute)) {
+            return null;
+        }
+        return root.resolve(rootAbsolute.relativize(absolute)).toString();
+    }
+
+    private void append(String record) {
+        append(List.of(record));
+    }
+
+    private void append(List<String> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            if (log == null) {
+                log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            for (String record : records) {
+                log.write(record);
+                log.newLine();
+            }
+            log.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error appending to path log: ", e);
+        }
+        pendingRecords += records.size();
+        if (pendingRecords >= COMPACT_EVERY) {
+            compact();
+        }
+    }
+
+    /** Writes the whole index as a new snapshot and starts an empty log. */
+    private void compact() {
+        Path temp = Paths.get(snapshotFile + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                writer.write(SNAPSHOT_HEADER);
+                writer.newLine();
+                for (String path : paths) {
+                    writer.write(path);
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            closeLog();
+            try {
+                Files.delete(logFile);
+            } catch (NoSuchFileException ignored) {
+            }
+            pendingRecords = 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error compacting path index: ", e);
+        }
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing path log: ", e);
+            }
+            log = null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage used by each user folder under the upload folder, and the limit it may grow to.
+ * <p>
+ * Usage is the total size of the regular files in the folder. It is kept as one atomic
+ * counter per user that every mutation adjusts by the bytes it added or removed, so
+ * checking a quota never walks anything. The counters are written out at a clean
+ * shutdown only: the file starts with {@link #CLEAN} then, and is marked dirty again
+ * as soon as it has been loaded. A missing or dirty file means the counters may be
+ * off, and they are rebuilt by summing every user folder in parallel.
+ * <p>
+ * Limits come from {@code server.quotaBytes}, with per-user overrides in the limits
+ * file ({@code user bytes} per line); 0 means unlimited.
+ */
+class QuotaManager {
+    private static final Logger LOGGER = Logger.getLogger(QuotaManager.class.getName());
+    private static final String CLEAN = "#usage clean";
+    private static final String DIRTY = "#usage dirty";
+
+    private final Path root;
+    private final Path usageFile;
+    private final Path limitsFile;
+    private final long defaultLimit;
+    private final Map<String, AtomicLong> usage = new ConcurrentHashMap<>();
+    private final Map<String, Long> limits = new ConcurrentHashMap<>();
+
+    QuotaManager(Path root, Path usageFile, Path limitsFile, long defaultLimit) {
+        this.root = root.toAbsolutePath().normalize();
+        this.usageFile = usageFile;
+        this.limitsFile = limitsFile;
+        this.defaultLimit = defaultLimit;
+    }
+
+    void load() throws IOException {
+        if (Files.exists(limitsFile)) {
+            for (String[] fields : readPairs(limitsFile)) {
+                limits.put(fields[0], Long.parseLong(fields[1]));
+            }
+        }
+        List<String> lines = Files.exists(usageFile) ? Files.readAllLines(usageFile, StandardCharsets.UTF_8) : List.of();
+        if (!lines.isEmpty() && lines.get(0).equals(CLEAN)) {
+            for (String[] fields : readPairs(usageFile)) {
+                usage.put(fields[0], new AtomicLong(Long.parseLong(fields[1])));
+            }
+            LOGGER.info("Loaded storage usage of " + usage.size() + " users.");
+        } else {
+            rebuild();
+        }
+        Files.createDirectories(usageFile.toAbsolutePath().getParent());
+        Files.writeString(usageFile, DIRTY + System.lineSeparator(), StandardCharsets.UTF_8);
+    }
+
+    /** Writes the counters out, marked clean; call only once no more mutations can happen. */
+    void save() {
+        Path temp = Paths.get(usageFile + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(CLEAN);
+            writer.newLine();
+            for (Map.Entry<String, AtomicLong> entry : usage.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue().get());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error saving storage usage: ", e);
+            return;
+        }
+        try {
+            Files.move(temp, usageFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error saving storage usage: ", e);
+        }
+    }
+
+    /** Sums every user folder from scratch, all of them at once. */
+    private void rebuild() throws IOException {
+        long start = System.nanoTime();
+        List<Path> folders = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, Files::isDirectory)) {
+                stream.forEach(folders::add);
+            }
+        }
+        usage.clear();
+        folders.parallelStream().forEach(folder ->
+                usage.put(folder.getFileName().toString(), new AtomicLong(sizeOf(folder))));
+        LOGGER.info("Rebuilt storage usage of " + folders.size() + " users in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms.");
+    }
+
+    /** The user whose folder {@code path} is in, or null for paths outside every user folder. */
+    String ownerOf(Path path) {
+        Path relative = path.toAbsolutePath().normalize();
+        if (!relative.startsWith(root) || relative.equals(root)) {
+            return null;
+        }
+        return root.relativize(relative).getName(0).toString();
+    }
+
+    long used(String user) {
+        AtomicLong counter = usage.get(user);
+        return counter == null ? 0 : counter.get();
+    }
+
+    long limit(String user) {
+        return limits.getOrDefault(user, defaultLimit);
+    }
+
+    /** Accounts {@code delta} bytes, positive or negative, to the owner of {@code path}. */
+    void adjust(Path path, long delta) {
+        String owner = ownerOf(path);
+        if (owner != null && delta != 0) {
+            usage.computeIfAbsent(owner, user -> new AtomicLong()).addAndGet(delta);
+        }
+    }
+
+    /** Whether the owner of {@code path} has room for {@code growth} more bytes; shrinking is always allowed. */
+    boolean admits(Path path, long growth) {
+        String owner = ownerOf(path);
+        if (owner == null || growth <= 0) {
+            return true;
+        }
+        long limit = limit(owner);
+        return limit <= 0 || used(owner) + growth <= limit;
+    }
+
+    /**
+     * Accounts {@code growth} bytes to the owner of {@code path} up front if they fit
+     * under the limit, so concurrent requests cannot all pass against the same usage;
+     * returns false, accounting nothing, if they do not. Undo with a negative
+     * {@link #adjust} when the request fails.
+     */
+    boolean reserve(Path path, long growth) {
+        String owner = ownerOf(path);
+        if (owner == null || growth == 0) {
+            return true;
+        }
+        AtomicLong counter = usage.computeIfAbsent(owner, user -> new AtomicLong());
+        long used = counter.addAndGet(growth);
+        long limit = limit(owner);
+        if (growth > 0 && limit > 0 && used > limit) {
+            counter.addAndGet(-growth);
+            return false;
+        }
+        return true;
+    }
+
+    /** Message for a request that {@link #admits} or {@link #reserve} turned down. */
+    String deniedMessage(Path path) {
+        String owner = ownerOf(path);
+        return "Storage quota exceeded: " + used(owner) + " of " + limit(owner) + " bytes used.";
+    }
+
+    /** Total size of the regular files at or below {@code path}, with subfolders summed in parallel. */
+    static long sizeOf(Path path) {
+        return ForkJoinPool.commonPool().invoke(new TreeSize(path));
+    }
+
+    private static List<String[]> readPairs(Path file) throws IOException {
+        List<String[]> pairs = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length == 2 && !line.startsWith("#")) {
+                    pairs.add(fields);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private static final class TreeSize extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path path;
+
+        TreeSize(Path path) {
+            this.path = path;
+        }
+
+        @Override
+        protected Long compute() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (!attributes.isDirectory()) {
+                    return attributes.isRegularFile() ? attributes.size() : 0L;
+                }
+                long files = 0;
+                List<TreeSize> folders = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path child : stream) {
+                        BasicFileAttributes entry = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (entry.isDirectory()) {
+                            TreeSize task = new TreeSize(child);
+                            task.fork();
+                            folders.add(task);
+                        } else if (entry.isRegularFile()) {
+                            files += entry.size();
+                        }
+                    }
+                }
+                for (TreeSize folder : folders) {
+                    files += folder.join();
+                }
+                return files;
+            } catch (NoSuchFileException e) {
+                return 0L;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot size " + path + ": ", e);
+                return 0L;
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Whole contents of small, popular files, held off the heap in direct buffers so that
+ * downloads and the file viewer can serve them without reading the disk, and without
+ * the collector ever having to copy or scan them.
+ * <p>
+ * Entries are keyed by path and checked against the file's current size and
+ * modification time on every lookup; the server's own writes, renames and deletes also
+ * drop them explicitly. Admission is TinyLFU: every request is counted in a small
+ * {@link FrequencySketch}, and when the cache is full a file only gets in if it has been
+ * asked for more often than each of the least recently used entries it would displace,
+ * so one large, rarely read file cannot flush many popular small ones.
+ */
+class ReadCache {
+    private final MetadataCache metadata;
+    private final long capacity;
+    private final long maxFileBytes;
+    private final Map<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch();
+    private long used;
+    /** Bumped by every invalidation, so a load that raced with a change is not kept. */
+    private long generation;
+
+    ReadCache(MetadataCache metadata, long capacity, long maxFileBytes) {
+        this.metadata = metadata;
+        this.capacity = Math.max(0, capacity);
+        this.maxFileBytes = Math.min(Math.min(maxFileBytes, this.capacity), Integer.MAX_VALUE);
+    }
+
+    /**
+     * The content of {@code file} as a read-only buffer from position 0, loading it if it
+     * is worth caching, or null if it should be read from disk.
+     */
+    ByteBuffer get(Path file) throws IOException {
+        MetadataCache.FileStat stat = metadata.stat(file);
+        if (!stat.regularFile || stat.size == 0 || stat.size > maxFileBytes) {
+            return null;
+        }
+        Path key = file.toAbsolutePath().normalize();
+        long loadGeneration;
+        synchronized (this) {
+            sketch.increment(key);
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.size == stat.size && entry.modified == stat.lastModified) {
+                    return entry.content.duplicate();
+                }
+                remove(key);
+            }
+            if (!admits(key, stat.size)) {
+                return null;
+            }
+            loadGeneration = generation;
+        }
+        ByteBuffer content = load(key, stat);
+        if (content == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (generation == loadGeneration && !entries.containsKey(key) && admits(key, stat.size)) {
+                while (used + stat.size > capacity) {
+                    remove(entries.keySet().iterator().next());
+                }
+                entries.put(key, new Entry(content, stat.size, stat.lastModified));
+                used += stat.size;
+            }
+        }
+        return content.duplicate();
+    }
+
+    /** Drops {@code path} and, if it is a folder, everything cached below it. */
+    synchronized void invalidate(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        generation++;
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Entry> entry = it.next();
+            if (entry.getKey().startsWith(key)) {
+                used -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+    synchronized long usedBytes() {
+        return used;
+    }
+
+    /** True if there is room for {@code size} more bytes, or the entries that would make room are all less popular. */
+    private boolean admits(Path key, long size) {
+        long needed = used + size - capacity;
+        if (needed <= 0) {
+            return true;
+        }
+        int frequency = sketch.frequency(key);
+        long freed = 0;
+        for (Map.Entry<Path, Entry> victim : entries.entrySet()) {
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            freed += victim.getValue().size;
+            if (freed >= needed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void remove(Path key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            used -= entry.size;
+        }
+    }
+
+    /** Reads the file into a direct buffer, or returns null if it changed while being read. */
+    private static ByteBuffer load(Path key, MetadataCache.FileStat stat) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) stat.size);
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            while (content.hasRemaining()) {
+                if (channel.read(content) == -1) {
+                    return null;
+                }
+            }
+        }
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        if (attributes.size() != stat.size || attributes.lastModifiedTime().toMillis() != stat.lastModified) {
+            return null;
+        }
+        return content.flip().asReadOnlyBuffer();
+    }
+
+    private static final class Entry {
+        final ByteBuffer content;
+        final long size;
+        final long modified;
+
+        Entry(ByteBuffer content, long size, long modified) {
+            this.content = content;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * Approximate request counts per path: a count-min sketch of 4-bit counters. All
+     * counters are halved every {@code 10 * WIDTH} requests, so files that were popular
+     * once but no longer are do not hold their place forever.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 1 << 16;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+        private final byte[][] counters = new byte[DEPTH][WIDTH];
+        private int additions;
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                int index = indexOf(hash, row);
+                if (counters[row][index] < MAX_COUNT) {
+                    counters[row][index]++;
+                }
+            }
+            if (++additions == 10 * WIDTH) {
+                halve();
+            }
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counters[row][indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void halve() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+
+        private static int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & (WIDTH - 1);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inverted index of file names and text content under the upload folder.
+ * <p>
+ * Terms are lower-cased runs of letters and digits. Each term maps to the files that
+ * contain it, with its count in the content and whether it occurs in the name. A query
+ * matches files containing every query term, the last one also as a prefix, and ranks
+ * them by a tf-idf score in which name hits weigh the most.
+ * <p>
+ * The index is kept current by {@link #update}, which only queues the path: a single
+ * background thread re-reads queued paths, so handlers never wait for tokenizing.
+ * Repeated updates of a path coalesce while it waits. A queued directory is walked,
+ * picking up new files and dropping vanished ones, which is also how the index is
+ * built at startup. Content is read only from files up to {@code maxContentBytes}
+ * that do not look binary; larger and binary files are found by name only.
+ */
+class SearchIndex {
+    private static final Logger LOGGER = Logger.getLogger(SearchIndex.class.getName());
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 64;
+    private static final int MAX_TERMS_PER_FILE = 20_000;
+    private static final int MAX_PREFIX_EXPANSION = 64;
+    private static final double NAME_WEIGHT = 3.0;
+    private static final int BINARY_SNIFF_BYTES = 4096;
+
+    private final Path root;
+    private final long maxContentBytes;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Document> documents = new TreeMap<>();
+    private final NavigableMap<String, Map<Document, Integer>> postings = new TreeMap<>();
+    private final Set<Path> pending = new LinkedHashSet<>();
+    private volatile boolean ready;
+
+    SearchIndex(Path root, long maxContentBytes) {
+        this.root = root.toAbsolutePath().normalize();
+        this.maxContentBytes = maxContentBytes;
+    }
+
+    /** Starts the indexing thread with a full crawl of the root queued. */
+    void start() {
+        update(root);
+        Thread indexer = new Thread(this::index, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /** False until the startup crawl has finished; results may be incomplete until then. */
+    boolean isReady() {
+        return ready;
+    }
+
+    /** Schedules {@code path}, and everything under it if it is a directory, to be re-read. */
+    void update(Path path) {
+        synchronized (pending) {
+            pending.add(path.toAbsolutePath().normalize());
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * The best {@code limit} files under {@code scope} that contain every term of
+     * {@code query}, best first.
+     */
+    List<Hit> search(Path scope, String query, int limit) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+        String prefix = scope.toAbsolutePath().normalize() + File.separator;
+        lock.readLock().lock();
+        try {
+            int total = Math.max(1, documents.size());
+            Map<Document, Double> scores = null;
+            for (int i = 0; i < terms.size(); i++) {
+                Map<Document, Double> termScores = new HashMap<>();
+                Iterable<Map.Entry<String, Map<Document, Integer>>> matches = i == terms.size() - 1
+                        ? expand(terms.get(i))
+                        : postings.subMap(terms.get(i), true, terms.get(i), true).entrySet();
+                for (Map.Entry<String, Map<Document, Integer>> match : matches) {
+                    double idf = Math.log(1 + (double) total / match.getValue().size());
+                    for (Map.Entry<Document, Integer> posting : match.getValue().entrySet()) {
+                        Document document = posting.getKey();
+                        if ((scores == null || scores.containsKey(document)) && document.path.startsWith(prefix)) {
+                            termScores.merge(document, idf * weight(posting.getValue()), Math::max);
+                        }
+                    }
+                }
+                if (scores != null) {
+                    Map<Document, Double> previous = scores;
+                    termScores.replaceAll((document, score) -> score + previous.get(document));
+                }
+                scores = termScores;
+                if (scores.isEmpty()) {
+                    return List.of();
+                }
+            }
+            limit = Math.max(1, limit);
+            PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, (a, b) -> Double.compare(a.score, b.score));
+            for (Map.Entry<Document, Double> entry : scores.entrySet()) {
+                best.add(new Hit(entry.getKey().path, entry.getKey().size, entry.getValue()));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            List<Hit> hits = new ArrayList<>(best);
+            hits.sort((a, b) -> Double.compare(b.score, a.score));
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Postings of every term starting with {@code prefix}, up to a limit. */
+    private Iterable<Map.Entry<String, Map<Document, Integer>>> expand(String prefix) {
+        List<Map.Entry<String, Map<Document, Integer>>> result = new ArrayList<>();
+        for (Map.Entry<String, Map<Document, Integer>> entry : postings.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix) || result.size() == MAX_PREFIX_EXPANSION) {
+                break;
+            }
+            result.add(entry);
+        }
+        return result;
+    }
+
+    /** A posting is the content count shifted left by one, with bit 0 set for a name hit. */
+    private static double weight(int posting) {
+        int count = posting >>> 1;
+        return ((posting & 1) != 0 ? NAME_WEIGHT : 0) + count / (count + 1.2);
+    }
+
+    private void index() {
+        while (true) {
+            Path path;
+            synchronized (pending) {
+                while (pending.isEmpty()) {
+                    ready = true;
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                Iterator<Path> it = pending.iterator();
+                path = it.next();
+                it.remove();
+            }
+            try {
+                refresh(path);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not index " + path + ": ", e);
+            }
+        }
+    }
+
+    private void refresh(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            remove(path.toString());
+            removeUnder(path + File.separator);
+            return;
+        }
+        if (!attributes.isDirectory()) {
+            removeUnder(path + File.separator);
+            if (attributes.isRegularFile()) {
+                refreshFile(path, attributes);
+            } else {
+                remove(path.toString());
+            }
+            return;
+        }
+        remove(path.toString());
+        long start = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    seen.add(file.toString());
+                    refreshFile(file, attrs);
+                    if (seen.size() % 64 == 0) {
+                        refreshQueuedFiles();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        List<String> stale = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            String prefix = path + File.separator;
+            for (String key : documents.subMap(prefix, prefix + Character.MAX_VALUE).keySet()) {
+                if (!seen.contains(key)) {
+                    stale.add(key);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (String key : stale) {
+            // may have been created after the walk passed its directory and indexed meanwhile
+            if (!Files.exists(Path.of(key), LinkOption.NOFOLLOW_LINKS)) {
+                remove(key);
+            }
+        }
+        if (path.equals(root)) {
+            LOGGER.info("Search index: " + seen.size() + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        }
+    }
+
+    /**
+     * Handles queued updates of single files in the middle of a long walk, so a fresh
+     * upload does not wait for a crawl to finish. Queued directories stay queued.
+     */
+    private void refreshQueuedFiles() {
+        List<Path> queued;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            queued = new ArrayList<>(pending);
+        }
+        for (Path path : queued) {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                continue;
+            }
+            synchronized (pending) {
+                if (!pending.remove(path)) {
+                    continue;
+                }
+            }
+            try {
+                refresh(path);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Could not index " + path + ": ", e);
+            }
+        }
+    }
+
+    private void refreshFile(Path file, BasicFileAttributes attributes) {
+        String key = file.toString();
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        lock.readLock().lock();
+        try {
+            Document current = documents.get(key);
+            if (current != null && current.size == size && current.modified == modified) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, Integer> terms = new HashMap<>();
+        for (String term : tokenize(file.getFileName().toString())) {
+            terms.put(term, 1);
+        }
+        if (size <= maxContentBytes) {
+            try {
+                readContent(file, terms);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Indexing " + file + " by name only: ", e);
+            }
+        }
+
+        Document document = new Document(key, size, modified, terms.keySet().toArray(new String[0]));
+        lock.writeLock().lock();
+        try {
+            removeLocked(key);
+            documents.put(key, document);
+            for (Map.Entry<String, Integer> term : terms.entrySet()) {
+                postings.computeIfAbsent(term.getKey(), t -> new HashMap<>()).put(document, term.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Adds content term counts to {@code terms}, leaving it alone for files that look binary. */
+    private static void readContent(Path file, Map<String, Integer> terms) throws IOException {
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), BINARY_SNIFF_BYTES)) {
+            stream.mark(BINARY_SNIFF_BYTES);
+            for (byte b : stream.readNBytes(BINARY_SNIFF_BYTES)) {
+                if (b == 0) {
+                    return;
+                }
+            }
+            stream.reset();
+            Reader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE)));
+            StringBuilder term = new StringBuilder();
+            int c;
+            do {
+                c = reader.read();
+                if (c >= 0 && Character.isLetterOrDigit(c)) {
+                    if (term.length() < MAX_TERM) {
+                        term.append((char) Character.toLowerCase(c));
+                    }
+                } else if (term.length() > 0) {
+                    if (term.length() >= MIN_TERM && (terms.size() < MAX_TERMS_PER_FILE || terms.containsKey(term.toString()))) {
+                        // content counts sit above bit 0, which marks a name hit
+                        terms.merge(term.toString(), 2, Integer::sum);
+                    }
+                    term.setLength(0);
+                }
+            } while (c >= 0);
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                if (term.length() >= MIN_TERM) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    /** Removes every document whose key starts with {@code prefix}. */
+    private void removeUnder(String prefix) {
+        lock.writeLock().lock();
+        try {
+            for (String key : new ArrayList<>(documents.subMap(prefix, prefix + Character.MAX_VALUE).keySet())) {
+                removeLocked(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeLocked(String key) {
+        Document document = documents.remove(key);
+        if (document == null) {
+            return;
+        }
+        for (String term : document.terms) {
+            Map<Document, Integer> files = postings.get(term);
+            if (files != null) {
+                files.remove(document);
+                if (files.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    private static final class Document {
+        final String path;
+        final long size;
+        final long modified;
+        final String[] terms;
+
+        Document(String path, long size, long modified, String[] terms) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.terms = terms;
+        }
+    }
+
+    static final class Hit {
+        final String path;
+        final long size;
+        final double score;
+
+        Hit(String path, long size, double score) {
+            this.path = path;
+            this.size = size;
+            this.score = score;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parks idle sessions in a single {@link Selector}. When a session becomes readable
+ * its key is cancelled, the channel is switched to blocking mode and one command is
+ * run on a worker thread; afterwards the channel is handed back to the selector. A
+ * command that then waits on the client or on a job (see
+ * {@link Server.ClientHandler#hasDeferred}) finishes on a virtual thread instead, so
+ * a few idle prompts cannot tie up the bounded worker pool.
+ */
+class SelectorEngine extends ConnectionEngine {
+    private static final Logger LOGGER = Logger.getLogger(SelectorEngine.class.getName());
+    private final Selector selector;
+    private final ExecutorService workers = Executors.newFixedThreadPool(ServerConfig.WORKER_THREADS);
+    private final Thread.Builder waiters = Thread.ofVirtual().name("session-wait-", 0);
+    private final Queue<Server.ClientHandler> parked = new ConcurrentLinkedQueue<>();
+
+    SelectorEngine() throws IOException {
+        selector = Selector.open();
+    }
+
+    @Override
+    void serve(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        List<Server.ClientHandler> ready = new ArrayList<>();
+        while (true) {
+            // Keys picked up by the selectNow() below are still waiting in the selected set.
+            if (selector.selectedKeys().isEmpty()) {
+                selector.select();
+            } else {
+                selector.selectNow();
+            }
+            registerParked();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel);
+                } else if (key.isReadable()) {
+                    key.cancel();
+                    ready.add((Server.ClientHandler) key.attachment());
+                }
+            }
+
+            if (!ready.isEmpty()) {
+                // Flush the cancelled keys so the channels may leave non-blocking mode.
+                selector.selectNow();
+                for (Server.ClientHandler handler : ready) {
+                    workers.execute(() -> runCommand(handler));
+                }
+                ready.clear();
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null || !admit(channel)) {
+            return;
+        }
+        Server.ClientHandler handler = new Server.ClientHandler(channel.socket());
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, handler);
+    }
+
+    private void registerParked() {
+        Server.ClientHandler handler;
+        while ((handler = parked.poll()) != null) {
+            try {
+                handler.channel().configureBlocking(false);
+                handler.channel().register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException e) {
+                handler.close();
+                release();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not park session.", e);
+                handler.close();
+                release();
+            }
+        }
+    }
+
+    private void runCommand(Server.ClientHandler handler) {
+        boolean alive = false;
+        try {
+            handler.channel().configureBlocking(true);
+            if (!handler.isOpen()) {
+                handler.open();
+            }
+            do {
+                alive = handler.handleNextCommand();
+            } while (alive && !handler.hasDeferred() && handler.hasBufferedInput());
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "IO Error during session.", e);
+            alive = false;
+        }
+
+        if (alive && handler.hasDeferred()) {
+            // A confirmation or job watch can take minutes; wait on a virtual thread, not a worker.
+            waiters.start(() -> afterDeferred(handler, handler.runDeferred()));
+        } else {
+            finish(handler, alive);
+        }
+    }
+
+    private void afterDeferred(Server.ClientHandler handler, boolean alive) {
+        try {
+            if (alive && handler.hasBufferedInput()) {
+                workers.execute(() -> runCommand(handler));
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "IO Error during session.", e);
+            alive = false;
+        }
+        finish(handler, alive);
+    }
+
+    /** Parks the session until its next command, or closes it. */
+    private void finish(Server.ClientHandler handler, boolean alive) {
+        if (alive) {
+            parked.add(handler);
+            selector.wakeup();
+        } else {
+            handler.close();
+            release();
+        }
+    }
+}
@@ -1,26 +1,62 @@
 package server;
 
+import utils.Compression;
+import utils.ContentHash;
+import utils.DeltaSync;
+import utils.FileTransfer;
+import utils.Protocol;
 import utils.User;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 public class Server {
     private static final int PORT = 12345;
-    private static List<User> userList = new ArrayList<>();
     private static final String USERS_FILE = "res/data/users.txt";
+    private static final String USERS_JOURNAL = "res/data/users.journal";
     private static final String PATHS_FILE = "res/data/paths.txt";
+    private static final String PATHS_LOG = "res/data/paths.log";
     private static final String UPLOAD_FOLDER = "res/server_files/";
+    private static final String BLOBS_FOLDER = "res/blobs/";
+    private static final String USAGE_FILE = "res/data/usage.txt";
+    private static final String QUOTAS_FILE = "res/data/quotas.txt";
+    private static final int MAX_SEARCH_RESULTS = 200;
     private static final Logger LOGGER = Logger.getLogger(Server.class.getName());
+    private static final UserStore userStore = new UserStore(Paths.get(USERS_FILE), Paths.get(USERS_JOURNAL));
+    private static final Metrics metrics = new Metrics();
+    private static final BlobStore blobStore = new BlobStore(Paths.get(BLOBS_FOLDER), metrics);
+    private static final MetadataCache metadata = new MetadataCache(ServerConfig.METADATA_CACHE_DIRECTORIES, ServerConfig.METADATA_CACHE_ENTRIES);
+    private static final ReadCache readCache = new ReadCache(metadata, ServerConfig.READ_CACHE_BYTES, ServerConfig.READ_CACHE_MAX_FILE_BYTES);
+    private static final FileViewer fileViewer = new FileViewer(256, readCache);
+    private static final JobManager jobs = new JobManager(ServerConfig.JOB_THREADS, ServerConfig.JOB_QUEUE, ServerConfig.JOBS_PER_USER);
+    private static final SearchIndex search = new SearchIndex(Paths.get(UPLOAD_FOLDER), ServerConfig.SEARCH_MAX_CONTENT_BYTES);
+    private static final ParallelTransfers transfers = new ParallelTransfers();
+    private static final PathIndex pathIndex = new PathIndex(Paths.get(PATHS_FILE), Paths.get(PATHS_LOG), Paths.get(UPLOAD_FOLDER));
+    private static final Bandwidth bandwidth = new Bandwidth(ServerConfig.GLOBAL_BYTES_PER_SECOND, ServerConfig.USER_BYTES_PER_SECOND);
+    private static final SessionTable sessions = new SessionTable(ServerConfig.SESSIONS, ServerConfig.SESSION_TTL_SECONDS * 1000);
+    private static final QuotaManager quotas = new QuotaManager(Paths.get(UPLOAD_FOLDER), Paths.get(USAGE_FILE), Paths.get(QUOTAS_FILE), ServerConfig.QUOTA_BYTES);
 
 
     public static void main(String[] args) {
@@ -31,52 +67,72 @@ public class Server {
     private void start() {
         // Tạo thư mục upload nếu chưa tồn tại
         new File(UPLOAD_FOLDER).mkdirs();
-
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running...");
-            while (true) {
-                new ClientHandler(serverSocket.accept()).start();
-            }
+        try {
+            pathIndex.load();
         } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Server error: ", e);
+            LOGGER.log(Level.SEVERE, "Error loading path index: ", e);
         }
-    }
-
-    private static void loadUsers() {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(USERS_FILE))) {
-            userList = (List<User>) ois.readObject();
-        } catch (EOFException e) {
-            saveUsers();
-        } catch (IOException | ClassNotFoundException e) {
-            LOGGER.log(Level.SEVERE, "Error loading users: ", e);
+        try {
+            quotas.load();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error loading storage usage: ", e);
         }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bandwidth, new ObjectName("server:type=Bandwidth"));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Bandwidth limits cannot be changed at runtime: ", e);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName("server:type=Metrics"));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Metrics will not be published over JMX: ", e);
+        }
+        metadata.start();
+        search.start();
+        jobs.start();
+        try {
+            blobStore.load();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error loading blob store: ", e);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            pathIndex.close();
+            userStore.close();
+            metadata.close();
+            quotas.save();
+        }));
 
-    }
-
-    private static void saveUsers() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(USERS_FILE))) {
-            oos.writeObject(userList);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT), ServerConfig.ACCEPT_BACKLOG);
+            System.out.println("Server is running (" + ServerConfig.ENGINE + " engine)...");
+            ConnectionEngine.create().serve(serverChannel);
         } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error saving users: ", e);
+            LOGGER.log(Level.SEVERE, "Server error: ", e);
         }
     }
 
-    private static void savePaths(List<String> paths) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(PATHS_FILE))) {
-            for (String path : paths) {
-                writer.write(path);
-                writer.newLine();
-            }
+    private static void loadUsers() {
+        try {
+            userStore.load();
+            LOGGER.info("Loaded " + userStore.size() + " users.");
         } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error saving paths: ", e);
+            LOGGER.log(Level.SEVERE, "Error loading users: ", e);
         }
     }
 
-    public static class ClientHandler extends Thread {
+    public static class ClientHandler implements Runnable {
         private final Socket socket;
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
+        private DataInputStream in;
+        private DataOutputStream out;
         private String currentDir;
+        private String username;
+        private byte compression = Compression.NONE;
+        private final Bandwidth.Meter meter = bandwidth.newMeter();
+        private OutputStream rawOut;
+        private boolean counted;
+        private SessionTable.Session session;
+        /** Rest of the last command, which waits on the client or on a job; see {@link #runDeferred}. */
+        private Deferred deferred;
         private static final Logger LOGGER = Logger.getLogger(ClientHandler.class.getName());
 
         public ClientHandler(Socket socket) {
@@ -86,77 +142,257 @@ public class Server {
         @Override
         public void run() {
             try {
-                setupStreams();
-                LOGGER.info("Client connected: " + socket.getInetAddress());
-
-                while (true) {
-                    try {
-                        String command = (String) in.readObject();
-                        LOGGER.info("Received command: " + command);
-
-                        if ("login".equals(command)) {
-                            User user = authenticate();
-                            currentDir = Paths.get(UPLOAD_FOLDER, user.getUsername()).toString();
-                            Files.createDirectories(Paths.get(currentDir));
-                            out.writeObject(currentDir);
-                            LOGGER.info("User authenticated and directory set: " + currentDir);
-                            handleRegularUser();
-                        } else if ("register".equals(command)) {
-                            registerUser();
-                            LOGGER.info("User registered.");
-                        }
-                    } catch (EOFException e) {
-                        LOGGER.warning("Client disconnected unexpectedly.");
-                        break;
-                    } catch (ClassNotFoundException | IOException e) {
-                        LOGGER.log(Level.SEVERE, "Error during communication with client.", e);
-                        break;
-                    }
+                open();
+                while (handleNextCommand() && (!hasDeferred() || runDeferred())) {
+                    // one command per iteration until the client disconnects
                 }
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "IO Error during setup.", e);
             } finally {
-                closeConnections();
-                LOGGER.info("Connection closed.");
+                close();
             }
         }
 
-        private void handleRegularUser() throws IOException, ClassNotFoundException {
-            while (true) {
-                String command = (String) in.readObject();
-                switch (command) {
-                    case "upload":
-                        uploadFile();
-                        break;
-                    case "download":
-                        downloadFile();
-                        break;
-                    case "manage folder":
-                        manageFolder();
-                        break;
-                    case "manage file":
-                        manageFile();
-                        break;
-                    case "move to":
-                        moveToDirectory();
-                        break;
-                    case "back":
-                        goBackToParentDirectory();
-                        break;
-                    case "exit":
-                        return;
-                    default:
-                        out.writeObject("Invalid command");
+        void open() throws IOException {
+            setupStreams();
+            int version = Protocol.readHandshake(in);
+            if (version != Protocol.VERSION) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Unsupported protocol version: " + version);
+                out.flush();
+                throw new IOException("Client sent unsupported protocol version " + version);
+            }
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File Management Server v" + Protocol.VERSION);
+            out.flush();
+            metrics.sessionOpened();
+            counted = true;
+            LOGGER.info("Client connected: " + socket.getInetAddress());
+        }
+
+        boolean isOpen() {
+            return in != null;
+        }
+
+        SocketChannel channel() {
+            return socket.getChannel();
+        }
+
+        /**
+         * Reads and executes one command. Returns false once the session is over,
+         * so the connection engine can release it.
+         */
+        boolean handleNextCommand() {
+            try {
+                byte command = in.readByte();
+                long start = System.nanoTime();
+                LOGGER.info("Received command: " + Protocol.nameOf(command));
+                boolean transfer = Protocol.isTransferOp(command);
+                if (transfer) {
+                    meter.start(username);
+                    metrics.transferStarted();
+                }
+                try {
+                    if (command == Protocol.OP_COMPRESSION) {
+                        negotiateCompression();
+                    } else if (command == Protocol.OP_UPLOAD_PART || command == Protocol.OP_DOWNLOAD_PART) {
+                        transferPart(command);
+                    } else if (currentDir == null) {
+                        handleGuestCommand(command);
+                    } else {
+                        handleRegularUser(command);
+                    }
+                    if (session != null) {
+                        session.currentDir = currentDir;
+                    }
+                    out.flush();
+                } finally {
+                    meter.stop();
+                    if (transfer) {
+                        metrics.transferEnded();
+                    }
+                    metrics.command(command, start);
+                }
+                return true;
+            } catch (EOFException e) {
+                LOGGER.warning("Client disconnected unexpectedly.");
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error during communication with client.", e);
+            }
+            return false;
+        }
+
+        /**
+         * True when the last command left a wait behind (a confirmation from the client, or a
+         * job to finish) for the engine to run with {@link #runDeferred}, off any bounded pool.
+         */
+        boolean hasDeferred() {
+            return deferred != null;
+        }
+
+        /** Runs what the last command deferred; returns false if the session should end. */
+        boolean runDeferred() {
+            Deferred work = deferred;
+            deferred = null;
+            try {
+                work.run();
+                out.flush();
+                return true;
+            } catch (EOFException e) {
+                LOGGER.warning("Client disconnected unexpectedly.");
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error during communication with client.", e);
+            }
+            return false;
+        }
+
+        private interface Deferred {
+            void run() throws IOException;
+        }
+
+        /** True when the next command is already buffered and would not show up as socket readiness. */
+        boolean hasBufferedInput() throws IOException {
+            return in.available() > 0;
+        }
+
+        void close() {
+            if (counted) {
+                counted = false;
+                metrics.sessionClosed();
+            }
+            if (session != null) {
+                sessions.detach(session, this);
+                session = null;
+            }
+            closeConnections();
+            LOGGER.info("Connection closed.");
+        }
+
+        /** The client lists the codecs it supports, best first; the first one this server allows wins. */
+        private void negotiateCompression() throws IOException {
+            int count = in.readUnsignedByte();
+            byte[] offered = new byte[count];
+            in.readFully(offered);
+            byte chosen = Compression.NONE;
+            for (byte codec : offered) {
+                for (byte allowed : ServerConfig.COMPRESSION) {
+                    if (codec == allowed) {
+                        chosen = codec;
                         break;
+                    }
+                }
+                if (chosen != Compression.NONE) {
+                    break;
                 }
             }
+            compression = chosen;
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Transfer compression: " + Compression.nameOf(chosen));
+            out.writeByte(chosen);
+        }
+
+        private void handleGuestCommand(byte command) throws IOException {
+            switch (command) {
+                case Protocol.OP_LOGIN:
+                    User user = authenticate();
+                    if (user != null) {
+                        username = user.getUsername();
+                        currentDir = Paths.get(UPLOAD_FOLDER, user.getUsername()).toString();
+                        Files.createDirectories(Paths.get(currentDir));
+                        session = sessions.open(username, currentDir, this);
+                        Protocol.writeString(out, currentDir);
+                        Protocol.writeString(out, session.token);
+                        LOGGER.info("User authenticated and directory set: " + currentDir);
+                    }
+                    break;
+                case Protocol.OP_RESUME:
+                    resumeSession();
+                    break;
+                case Protocol.OP_REGISTER:
+                    registerUser();
+                    LOGGER.info("User registered.");
+                    break;
+                default:
+                    Protocol.writeReply(out, Protocol.STATUS_DENIED, "Login required");
+                    break;
+            }
+        }
+
+        private void handleRegularUser(byte command) throws IOException {
+            if (Protocol.isFolderOp(command)) {
+                manageFolder(command);
+                return;
+            }
+            if (Protocol.isFileOp(command)) {
+                manageFile(command);
+                return;
+            }
+            if (Protocol.isJobOp(command)) {
+                manageJob(command);
+                return;
+            }
+            switch (command) {
+                case Protocol.OP_UPLOAD:
+                    uploadFile();
+                    break;
+                case Protocol.OP_DOWNLOAD:
+                    downloadFile();
+                    break;
+                case Protocol.OP_UPLOAD_RANGE:
+                    uploadRange();
+                    break;
+                case Protocol.OP_DOWNLOAD_RANGE:
+                    downloadRange();
+                    break;
+                case Protocol.OP_PARTIAL_SIZE:
+                    partialSize();
+                    break;
+                case Protocol.OP_UPLOAD_DELTA:
+                    uploadDelta();
+                    break;
+                case Protocol.OP_BATCH:
+                    batch();
+                    break;
+                case Protocol.OP_PARALLEL_UPLOAD:
+                    beginParallelUpload();
+                    break;
+                case Protocol.OP_PARALLEL_DOWNLOAD:
+                    beginParallelDownload();
+                    break;
+                case Protocol.OP_UPLOAD_COMMIT:
+                    commitParallelUpload();
+                    break;
+                case Protocol.OP_MOVE_TO:
+                    moveToDirectory();
+                    break;
+                case Protocol.OP_BACK:
+                    goBackToParentDirectory();
+                    break;
+                case Protocol.OP_SEARCH:
+                    searchFiles();
+                    break;
+                case Protocol.OP_STATS:
+                    if (ServerConfig.ADMINS.contains(username)) {
+                        Protocol.writeReply(out, Protocol.STATUS_OK, metrics.getReport());
+                    } else {
+                        Protocol.writeReply(out, Protocol.STATUS_DENIED, "Only admins can read server statistics.");
+                    }
+                    break;
+                case Protocol.OP_EXIT:
+                    sessions.close(session);
+                    session = null;
+                    currentDir = null;
+                    username = null;
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "Logged out.");
+                    break;
+                default:
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid command");
+                    break;
+            }
         }
 
 
         private void setupStreams() throws IOException {
-            in = new ObjectInputStream(socket.getInputStream());
-            out = new ObjectOutputStream(socket.getOutputStream());
-            out.flush();
+            rawOut = meter.wrap(metrics.counting(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(meter.wrap(metrics.counting(socket.getInputStream())), FileTransfer.CHUNK_SIZE));
+            out = new DataOutputStream(new BufferedOutputStream(rawOut, FileTransfer.CHUNK_SIZE));
         }
 
         private void closeConnections() {
@@ -169,130 +405,901 @@ public class Server {
             }
         }
 
-        private User authenticate() throws IOException, ClassNotFoundException {
-            while (true) {
-                User user = (User) in.readObject();
-                for (User u : userList) {
-                    if (u.getUsername().equals(user.getUsername()) && u.getPassword().equals(user.getPassword())) {
-                        out.writeObject("success");
-                        return user;
+        private User authenticate() throws IOException {
+            String username = Protocol.readString(in);
+            String password = Protocol.readString(in);
+            User user = userStore.authenticate(username, password);
+            if (user != null) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Authentication successful");
+                return user;
+            }
+            Protocol.writeReply(out, Protocol.STATUS_DENIED, "Authentication failed");
+            return null;
+        }
+
+        /** Picks up a session left by an earlier connection, in the folder it was in if that still exists. */
+        private void resumeSession() throws IOException {
+            SessionTable.Session resumed = sessions.resume(Protocol.readString(in), this);
+            if (resumed == null) {
+                Protocol.writeReply(out, Protocol.STATUS_DENIED, "Session expired, please log in again.");
+                return;
+            }
+            session = resumed;
+            username = resumed.username;
+            String home = Paths.get(UPLOAD_FOLDER, username).toString();
+            currentDir = Files.isDirectory(Paths.get(resumed.currentDir)) ? resumed.currentDir : home;
+            Files.createDirectories(Paths.get(currentDir));
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Session resumed");
+            Protocol.writeString(out, currentDir);
+            Protocol.writeString(out, resumed.token);
+            LOGGER.info("Session of " + username + " resumed in " + currentDir);
+        }
+
+        private void registerUser() throws IOException {
+            User newUser = new User(Protocol.readString(in), Protocol.readString(in));
+            try {
+                if (userStore.register(newUser)) {
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "Registration successful");
+                } else {
+                    Protocol.writeReply(out, Protocol.STATUS_EXISTS, "Username already exists");
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error saving users: ", e);
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Registration failed: " + e.getMessage());
+            }
+        }
+
+        private void uploadFile() throws IOException {
+            String fileName = Protocol.readString(in);
+            long size = in.readLong();
+            String expectedHash = null;
+            if (in.readBoolean()) {
+                byte[] hash = new byte[ContentHash.LENGTH];
+                in.readFully(hash);
+                expectedHash = HexFormat.of().formatHex(hash);
+            }
+            Path filePath = Paths.get(currentDir + "/" + fileName);
+            if (size < 0) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid size.");
+                return;
+            }
+            long previous = storedSize(filePath);
+            long reserved = Math.max(size - previous, 0);
+            if (!reserveQuota(filePath, reserved)) {
+                return;
+            }
+
+            Path temp;
+            MessageDigest digest = ContentHash.newDigest();
+            try {
+                if (expectedHash != null && blobStore.linkExisting(expectedHash, size, filePath)) {
+                    added(filePath);
+                    quotas.adjust(filePath, size - previous - reserved);
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "File uploaded successfully (already on server, no data sent).");
+                    return;
+                }
+                temp = blobStore.newTempFile();
+                Protocol.writeReply(out, Protocol.STATUS_CONTINUE, "Send file data.");
+                out.flush();
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    FileTransfer.receiveChunks(in, channel, digest, size);
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
+                }
+            } catch (IOException e) {
+                quotas.adjust(filePath, -reserved);
+                throw e;
+            }
+            commitUpload(temp, expectedHash, HexFormat.of().formatHex(digest.digest()), filePath, size, reserved, "File uploaded successfully.");
+        }
+
+        /**
+         * Re-upload of a file the server may already have an older version of. The
+         * server answers with block signatures of its copy, the client sends only
+         * what changed, and the new version is rebuilt into a fresh blob; the old
+         * one is only read, so other links to it are never touched.
+         */
+        private void uploadDelta() throws IOException {
+            String fileName = Protocol.readString(in);
+            long size = in.readLong();
+            byte[] hash = new byte[ContentHash.LENGTH];
+            in.readFully(hash);
+            String expectedHash = HexFormat.of().formatHex(hash);
+            Path filePath = Paths.get(currentDir + "/" + fileName);
+            if (size < 0) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid size.");
+                return;
+            }
+            long previous = storedSize(filePath);
+            long reserved = Math.max(size - previous, 0);
+            if (!reserveQuota(filePath, reserved)) {
+                return;
+            }
+
+            Path temp;
+            MessageDigest digest = ContentHash.newDigest();
+            long reused;
+            try {
+                if (blobStore.linkExisting(expectedHash, size, filePath)) {
+                    added(filePath);
+                    quotas.adjust(filePath, size - previous - reserved);
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "File uploaded successfully (already on server, no data sent).");
+                    return;
+                }
+                temp = blobStore.newTempFile();
+                try (FileChannel basis = metadata.stat(filePath).regularFile ? FileChannel.open(filePath, StandardOpenOption.READ) : null;
+                     FileChannel target = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    Protocol.writeReply(out, Protocol.STATUS_CONTINUE, "Send file delta.");
+                    int blockSize = 0;
+                    if (basis != null) {
+                        blockSize = DeltaSync.writeSignatures(basis, out);
+                    } else {
+                        DeltaSync.writeNoSignatures(out);
                     }
+                    out.flush();
+                    reused = DeltaSync.applyDelta(in, basis, blockSize, target, digest, size);
+                } catch (IOException e) {
+                    Files.deleteIfExists(temp);
+                    throw e;
                 }
-                out.writeObject("fail");
+            } catch (IOException e) {
+                quotas.adjust(filePath, -reserved);
+                throw e;
             }
+            commitUpload(temp, expectedHash, HexFormat.of().formatHex(digest.digest()), filePath, size, reserved, reused == 0
+                    ? "File uploaded successfully."
+                    : "File uploaded successfully (" + reused + " blocks reused).");
         }
 
-        private void registerUser() throws IOException, ClassNotFoundException {
-            User newUser = (User) in.readObject();
-            boolean userExists = userList.stream().anyMatch(u -> u.getUsername().equals(newUser.getUsername()));
-            if (userExists) {
-                out.writeObject("exists");
-            } else {
-                userList.add(newUser);
-                saveUsers();
-                out.writeObject("registered");
+        /**
+         * Files a received temp file under its hash and points {@code filePath} at it.
+         * {@code reserved} bytes of quota were taken for it up front; the charge is
+         * settled against the file's real growth, or given back if the upload fails.
+         */
+        private void commitUpload(Path temp, String expectedHash, String actualHash, Path filePath, long expectedSize,
+                                  long reserved, String message) throws IOException {
+            long size = Files.size(temp);
+            if (size != expectedSize || expectedHash != null && !expectedHash.equals(actualHash)) {
+                Files.delete(temp);
+                quotas.adjust(filePath, -reserved);
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, size != expectedSize
+                        ? "Size mismatch, upload discarded." : "Checksum mismatch, upload discarded.");
+                return;
+            }
+            long previous = storedSize(filePath);
+            try {
+                blobStore.commit(temp, actualHash, filePath);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                quotas.adjust(filePath, -reserved);
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Error uploading file: " + e.getMessage());
+                return;
             }
+            added(filePath);
+            quotas.adjust(filePath, size - previous - reserved);
+            Protocol.writeReply(out, Protocol.STATUS_OK, message);
         }
 
-        private void uploadFile() throws IOException, ClassNotFoundException {
-            String fileName = (String) in.readObject();
-            byte[] fileData = (byte[]) in.readObject();
-            Files.write(Paths.get(currentDir + "/" + fileName), fileData);
-            updatePaths();
-            out.writeObject("File uploaded successfully.");
+        /**
+         * Applies a manifest of folder creations, glob deletes and uploads in order. The
+         * client sends everything without waiting: after the manifest, the server names
+         * the uploads whose content it does not have yet, the client streams just those,
+         * and one reply carries every item's result. The path index is updated once, at
+         * the end.
+         */
+        private void batch() throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > Protocol.MAX_BATCH_ITEMS) {
+                throw new IOException("Invalid batch size: " + count);
+            }
+            byte[] kinds = new byte[count];
+            String[] names = new String[count];
+            long[] sizes = new long[count];
+            String[] hashes = new String[count];
+            Path[] paths = new Path[count];
+            long[] reserved = new long[count];
+            Protocol.Reply[] results = new Protocol.Reply[count];
+            List<Integer> needed = new ArrayList<>();
+            try {
+                readBatchManifest(kinds, names, sizes, hashes, paths, reserved, results, needed);
+                applyBatch(kinds, names, sizes, hashes, reserved, results, needed);
+            } finally {
+                // Quota reserved for items that failed or never ran goes back.
+                for (int i = 0; i < count; i++) {
+                    if (reserved[i] != 0) {
+                        quotas.adjust(paths[i], -reserved[i]);
+                    }
+                }
+            }
+        }
+
+        /** Reads the items and reserves quota for each upload, turning down the ones that do not fit. */
+        private void readBatchManifest(byte[] kinds, String[] names, long[] sizes, String[] hashes, Path[] paths,
+                                       long[] reserved, Protocol.Reply[] results, List<Integer> needed) throws IOException {
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = in.readByte();
+                names[i] = Protocol.readString(in);
+                if (kinds[i] == Protocol.BATCH_UPLOAD) {
+                    sizes[i] = in.readLong();
+                    byte[] hash = new byte[ContentHash.LENGTH];
+                    in.readFully(hash);
+                    hashes[i] = HexFormat.of().formatHex(hash);
+                    Path path = resolveInCurrentDir(names[i]);
+                    long growth = path == null ? 0 : Math.max(sizes[i] - storedSize(path), 0);
+                    if (path == null || sizes[i] < 0) {
+                        results[i] = new Protocol.Reply(Protocol.STATUS_INVALID,
+                                path == null ? "Path outside the current folder." : "Invalid size.");
+                    } else if (!quotas.reserve(path, growth)) {
+                        results[i] = new Protocol.Reply(Protocol.STATUS_DENIED, quotas.deniedMessage(path));
+                    } else {
+                        paths[i] = path;
+                        reserved[i] = growth;
+                        if (!blobStore.contains(hashes[i], sizes[i])) {
+                            needed.add(i);
+                        }
+                    }
+                } else if (kinds[i] != Protocol.BATCH_MKDIR && kinds[i] != Protocol.BATCH_DELETE) {
+                    throw new IOException("Invalid batch item kind: " + kinds[i]);
+                }
+            }
+        }
+
+        /** Streams the list of needed uploads, applies every item in order and sends the results. */
+        private void applyBatch(byte[] kinds, String[] names, long[] sizes, String[] hashes, long[] reserved,
+                                Protocol.Reply[] results, List<Integer> needed) throws IOException {
+            int count = kinds.length;
+            Protocol.writeReply(out, Protocol.STATUS_CONTINUE, needed.size() + " files to send.");
+            out.writeInt(needed.size());
+            for (int i : needed) {
+                out.writeInt(i);
+            }
+            out.flush();
+
+            Set<Integer> streamed = new HashSet<>(needed);
+            List<Path> created = new ArrayList<>();
+            List<Path> deleted = new ArrayList<>();
+            int failed = 0;
+            for (int i = 0; i < count; i++) {
+                if (results[i] == null) {
+                    try {
+                        results[i] = applyBatchItem(kinds[i], names[i], sizes[i], hashes[i], reserved[i], streamed.contains(i),
+                                created, deleted);
+                    } catch (IOException e) {
+                        results[i] = new Protocol.Reply(Protocol.STATUS_ERROR, e.getMessage());
+                    }
+                    if (results[i].isOk()) {
+                        reserved[i] = 0;
+                    }
+                }
+                if (!results[i].isOk()) {
+                    failed++;
+                }
+            }
+            removedAll(deleted);
+            addedAll(created);
+
+            Protocol.writeReply(out, failed == 0 ? Protocol.STATUS_OK : Protocol.STATUS_ERROR,
+                    "Batch done: " + (count - failed) + " succeeded, " + failed + " failed.");
+            out.writeInt(count);
+            for (Protocol.Reply result : results) {
+                Protocol.writeReply(out, result.getStatus(), result.getMessage());
+            }
+        }
+
+        /**
+         * Applies one batch item; an upload's data, if it was asked for, is read here in any case.
+         * A successful upload settles the {@code reserved} quota against its real growth; a
+         * failed one leaves the reservation for the caller to give back.
+         */
+        private Protocol.Reply applyBatchItem(byte kind, String name, long size, String hash, long reserved, boolean hasData,
+                                              List<Path> created, List<Path> deleted) throws IOException {
+            if (kind == Protocol.BATCH_DELETE) {
+                return deleteMatching(name, deleted);
+            }
+            Path path = resolveInCurrentDir(name);
+            if (kind == Protocol.BATCH_MKDIR) {
+                if (path == null) {
+                    return new Protocol.Reply(Protocol.STATUS_INVALID, "Path outside the current folder.");
+                }
+                createParents(path, created);
+                return new Protocol.Reply(Protocol.STATUS_OK, "Folder ready.");
+            }
+            long previous = storedSize(path);
+            if (!hasData) {
+                createParents(path.getParent(), created);
+                if (!blobStore.linkExisting(hash, size, path)) {
+                    return new Protocol.Reply(Protocol.STATUS_ERROR, "Content no longer on server, upload again.");
+                }
+                created.add(path);
+                quotas.adjust(path, size - previous - reserved);
+                return new Protocol.Reply(Protocol.STATUS_OK, "Uploaded (already on server, no data sent).");
+            }
+            Path temp = blobStore.newTempFile();
+            MessageDigest digest = ContentHash.newDigest();
+            long received;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                received = FileTransfer.receiveChunks(in, channel, digest, size);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            if (received != size || !hash.equals(HexFormat.of().formatHex(digest.digest()))) {
+                Files.delete(temp);
+                return new Protocol.Reply(Protocol.STATUS_ERROR, received != size
+                        ? "Size mismatch, upload discarded." : "Checksum mismatch, upload discarded.");
+            }
+            try {
+                createParents(path.getParent(), created);
+                blobStore.commit(temp, hash, path);
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            created.add(path);
+            quotas.adjust(path, size - previous - reserved);
+            return new Protocol.Reply(Protocol.STATUS_OK, "Uploaded.");
+        }
+
+        /** Deletes the regular files below the current folder whose relative path matches {@code glob}. */
+        private Protocol.Reply deleteMatching(String glob, List<Path> deleted) throws IOException {
+            Path base = Paths.get(currentDir);
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            List<Path> matches = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(base)) {
+                walk.filter(path -> matcher.matches(base.relativize(path)) && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS))
+                        .forEach(matches::add);
+            }
+            for (Path path : matches) {
+                long size = storedSize(path);
+                blobStore.delete(path);
+                deleted.add(path);
+                quotas.adjust(path, -size);
+            }
+            return matches.isEmpty()
+                    ? new Protocol.Reply(Protocol.STATUS_NOT_FOUND, "No files match " + glob + ".")
+                    : new Protocol.Reply(Protocol.STATUS_OK, "Deleted " + matches.size() + " files.");
+        }
+
+        /** Creates {@code dir} and its missing parents, noting each one for the path index. */
+        private void createParents(Path dir, List<Path> created) throws IOException {
+            if (Files.isDirectory(dir)) {
+                return;
+            }
+            Files.createDirectories(dir);
+            for (Path path = dir; !path.equals(Paths.get(currentDir)); path = path.getParent()) {
+                created.add(path);
+            }
         }
 
-        private void downloadFile() throws IOException, ClassNotFoundException {
-            String fileName = (String) in.readObject();
+        /** {@code name} resolved against the current folder, or null if it would leave it. */
+        private Path resolveInCurrentDir(String name) {
+            Path base = Paths.get(currentDir);
+            Path path = base.resolve(name).normalize();
+            return path.startsWith(base) && !path.equals(base) ? path : null;
+        }
+
+        /**
+         * Starts an upload that the client sends as byte ranges over several connections.
+         * Content the server already has is linked right away, as in {@link #uploadFile}.
+         */
+        private void beginParallelUpload() throws IOException {
+            String fileName = Protocol.readString(in);
+            long size = in.readLong();
+            byte[] hash = new byte[ContentHash.LENGTH];
+            in.readFully(hash);
+            String expectedHash = HexFormat.of().formatHex(hash);
+            Path filePath = Paths.get(currentDir + "/" + fileName);
+
+            if (size < 0) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid size.");
+                return;
+            }
+            long previous = storedSize(filePath);
+            if (!withinQuota(filePath, size - previous)) {
+                return;
+            }
+            if (blobStore.linkExisting(expectedHash, size, filePath)) {
+                added(filePath);
+                quotas.adjust(filePath, size - previous);
+                Protocol.writeReply(out, Protocol.STATUS_OK, "File uploaded successfully (already on server, no data sent).");
+                return;
+            }
+            ParallelTransfers.Transfer transfer = transfers.beginUpload(username, blobStore.newTempFile(), filePath, size, expectedHash);
+            Protocol.writeReply(out, Protocol.STATUS_CONTINUE, "Send file parts.");
+            Protocol.writeString(out, transfer.token);
+        }
+
+        /** Checks that every range arrived and the content matches its hash, then files it like any upload. */
+        private void commitParallelUpload() throws IOException {
+            ParallelTransfers.Transfer transfer = transfers.get(Protocol.readString(in));
+            if (transfer == null || !transfer.isUpload() || !transfer.owner.equals(username)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Unknown transfer.");
+                return;
+            }
+            if (!transfer.isComplete()) {
+                transfers.end(transfer, false);
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Upload incomplete, discarded.");
+                return;
+            }
+            // Checked when the transfer started, but reserved only now, so an abandoned transfer holds nothing.
+            long reserved = Math.max(transfer.size - storedSize(transfer.target), 0);
+            if (!reserveQuota(transfer.target, reserved)) {
+                transfers.end(transfer, false);
+                return;
+            }
+            String actualHash;
+            try {
+                transfer.channel.force(false);
+                transfers.end(transfer, true);
+                actualHash = HexFormat.of().formatHex(ContentHash.of(transfer.file));
+            } catch (IOException e) {
+                quotas.adjust(transfer.target, -reserved);
+                Files.deleteIfExists(transfer.file);
+                throw e;
+            }
+            commitUpload(transfer.file, transfer.hash, actualHash, transfer.target, transfer.size, reserved, "File uploaded successfully.");
+        }
+
+        /** Starts a download the client fetches as byte ranges; the reply carries the size and hash to check against. */
+        private void beginParallelDownload() throws IOException {
+            String fileName = Protocol.readString(in);
             Path filePath = Paths.get(UPLOAD_FOLDER, fileName);
+            MetadataCache.FileStat stat = metadata.stat(filePath);
+            if (!stat.regularFile) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Invalid file.");
+                return;
+            }
+            String hash = blobStore.hashOf(filePath);
+            byte[] digest = hash != null ? HexFormat.of().parseHex(hash) : ContentHash.of(filePath);
+            ParallelTransfers.Transfer transfer = transfers.beginDownload(username, filePath, stat.size);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Fetch file parts.");
+            Protocol.writeString(out, transfer.token);
+            out.writeLong(stat.size);
+            out.write(digest);
+        }
+
+        /** One byte range of a parallel transfer, on whichever connection the client chose. */
+        private void transferPart(byte command) throws IOException {
+            ParallelTransfers.Transfer transfer = transfers.get(Protocol.readString(in));
+            long offset = in.readLong();
+            boolean upload = command == Protocol.OP_UPLOAD_PART;
+            long length = upload ? 0 : in.readLong();
+            if (transfer == null || transfer.isUpload() != upload) {
+                if (upload) {
+                    FileTransfer.skipChunks(in);
+                }
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Unknown transfer.");
+                return;
+            }
+            meter.start(transfer.owner);
+            transfers.startPart(transfer);
+            try {
+                if (!upload) {
+                    sendFile(transfer.file, offset, length);
+                    if (offset >= 0 && offset <= transfer.size) {
+                        transfer.received(offset, length < 0 ? transfer.size - offset : Math.min(length, transfer.size - offset));
+                    }
+                    return;
+                }
+                if (offset < 0 || offset > transfer.size) {
+                    FileTransfer.skipChunks(in);
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid offset.");
+                    return;
+                }
+                long received = FileTransfer.receiveChunksAt(in, transfer.channel, offset, transfer.size);
+                transfer.received(offset, received);
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Part received.");
+            } finally {
+                transfers.endPart(transfer);
+            }
+        }
+
+        private void uploadRange() throws IOException {
+            String fileName = Protocol.readString(in);
+            long offset = in.readLong();
+            Path filePath = Paths.get(currentDir + "/" + fileName);
+
+            if (offset < 0) {
+                FileTransfer.skipChunks(in);
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid offset.");
+                return;
+            }
+            // The range's length is not sent up front, so only a user already at the limit is turned away.
+            if (!quotas.admits(filePath, 1)) {
+                FileTransfer.skipChunks(in);
+                Protocol.writeReply(out, Protocol.STATUS_DENIED, quotas.deniedMessage(filePath));
+                return;
+            }
+            long previous = storedSize(filePath);
+            blobStore.detach(filePath);
+            if (receiveFile(filePath, offset, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                added(filePath);
+                quotas.adjust(filePath, storedSize(filePath) - previous);
+                Protocol.writeReply(out, Protocol.STATUS_OK, "File range uploaded successfully.");
+            }
+        }
+
+        private void partialSize() throws IOException {
+            String fileName = Protocol.readString(in);
+            Path filePath = Paths.get(currentDir + "/" + fileName);
+
+            MetadataCache.FileStat stat = metadata.stat(filePath);
+            if (stat.exists && !stat.directory) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Partial file found.");
+                out.writeLong(stat.size);
+            } else {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "No partial file.");
+            }
+        }
 
-            if (Files.exists(filePath) && !Files.isDirectory(filePath)) {
-                byte[] fileData = Files.readAllBytes(filePath);
-                out.writeObject(fileData);
-                out.writeObject("File downloaded successfully.");
+        private boolean receiveFile(Path filePath, long offset, OpenOption... options) throws IOException {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(filePath, options);
+            } catch (IOException e) {
+                FileTransfer.skipChunks(in);
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Error uploading file: " + e.getMessage());
+                return false;
+            }
+            try (channel) {
+                channel.position(offset);
+                FileTransfer.receiveChunks(in, channel);
+            }
+            return true;
+        }
+
+        private void downloadFile() throws IOException {
+            String fileName = Protocol.readString(in);
+            sendFile(Paths.get(UPLOAD_FOLDER, fileName), 0, -1);
+        }
+
+        private void downloadRange() throws IOException {
+            String fileName = Protocol.readString(in);
+            long offset = in.readLong();
+            long length = in.readLong();
+            sendFile(Paths.get(UPLOAD_FOLDER, fileName), offset, length);
+        }
+
+        /**
+         * Sends {@code length} bytes starting at {@code offset}, or everything from
+         * {@code offset} to the end of the file when {@code length} is negative.
+         */
+        private void sendFile(Path filePath, long offset, long length) throws IOException {
+            if (!isFile(filePath)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Invalid file.");
+                return;
+            }
+
+            ByteBuffer cached = readCache.get(filePath);
+            try (FileChannel channel = cached == null ? FileChannel.open(filePath, StandardOpenOption.READ) : null) {
+                long size = cached != null ? cached.remaining() : channel.size();
+                if (offset < 0 || offset > size) {
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid range.");
+                    return;
+                }
+                long count = length < 0 ? size - offset : Math.min(length, size - offset);
+                byte codec = Compression.forFile(compression, filePath.getFileName().toString());
+                Protocol.writeReply(out, Protocol.STATUS_OK, "File downloaded successfully.");
+                out.writeLong(count);
+                out.writeByte(codec);
+                if (cached != null) {
+                    sendCached(cached.slice((int) offset, (int) count), codec);
+                } else if (codec == Compression.NONE) {
+                    out.flush();
+                    // Throttled sends go through the meter, and not through a stream channel, whose lock would pin the thread while it waits.
+                    if (meter.isLimited()) {
+                        FileTransfer.sendRaw(channel, offset, count, rawOut);
+                    } else {
+                        FileTransfer.sendRaw(channel, offset, count, rawOutput());
+                        metrics.sent(count);
+                    }
+                } else {
+                    FileTransfer.sendChunks(channel, offset, count, out, codec);
+                }
+            }
+        }
+
+        /** Same framing as from disk; a raw send writes the direct buffer straight to the socket. */
+        private void sendCached(ByteBuffer content, byte codec) throws IOException {
+            if (codec != Compression.NONE) {
+                FileTransfer.sendChunks(content, out, codec);
+                return;
+            }
+            out.flush();
+            if (meter.isLimited()) {
+                FileTransfer.sendRaw(content, rawOut);
             } else {
-                out.writeObject("Invalid file.");
+                int count = content.remaining();
+                FileTransfer.sendRaw(content, rawOutput());
+                metrics.sent(count);
             }
         }
 
+        private WritableByteChannel rawOutput() throws IOException {
+            return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        }
+
 
-        private void createDirectory() throws IOException, ClassNotFoundException {
-            String dirName = (String) in.readObject();
-            Files.createDirectory(Paths.get(currentDir + "/" + dirName));
-            updatePaths();
-            out.writeObject("Directory created successfully.");
+        private void createDirectory() throws IOException {
+            String dirName = Protocol.readString(in);
+            added(Files.createDirectory(Paths.get(currentDir + "/" + dirName)));
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Directory created successfully.");
         }
 
-        private void renameDirectory() throws IOException, ClassNotFoundException {
-            String oldDirName = (String) in.readObject();
-            String newDirName = (String) in.readObject();
+        private void renameDirectory() throws IOException {
+            String oldDirName = Protocol.readString(in);
+            String newDirName = Protocol.readString(in);
             Path sourcePath = Paths.get(currentDir + "/" + oldDirName);
             Path targetPath = Paths.get(currentDir + "/" + newDirName);
-            Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            updatePaths();
-            out.writeObject("Directory renamed successfully.");
+
+            if (!metadata.stat(sourcePath).directory) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Source directory does not exist.");
+                return;
+            }
+            if (isSameFile(sourcePath, targetPath)) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Directory renamed successfully.");
+                return;
+            }
+            if (targetPath.toAbsolutePath().normalize().startsWith(sourcePath.toAbsolutePath().normalize())) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Cannot move a directory into itself.");
+                return;
+            }
+            if (metadata.stat(targetPath).directory && !isEmptyDirectory(targetPath)) {
+                Protocol.writeReply(out, Protocol.STATUS_EXISTS, "Target directory exists and is not empty.");
+                return;
+            }
+            boolean replacesFile = metadata.stat(targetPath).regularFile;
+            long replaced = storedSize(targetPath);
+            try {
+                deleteReplaced(targetPath);
+                Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                if (replacesFile && !Files.exists(targetPath, LinkOption.NOFOLLOW_LINKS)) {
+                    removed(targetPath);
+                    quotas.adjust(targetPath, -replaced);
+                }
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Error renaming directory: " + e.getMessage());
+                return;
+            }
+            moved(sourcePath, targetPath);
+            quotas.adjust(targetPath, -replaced);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Directory renamed successfully.");
         }
 
-        private void deleteDirectory() throws IOException, ClassNotFoundException {
-            String dirName = (String) in.readObject();
+        private void deleteDirectory() throws IOException {
+            String dirName = Protocol.readString(in);
             Path dirPath = Paths.get(currentDir + "/" + dirName);
 
-            if (!Files.exists(dirPath)) {
-                out.writeObject("Directory does not exist.");
+            if (!metadata.stat(dirPath).exists) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Directory does not exist.");
                 return;
             }
 
             try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dirPath)) {
                 if (dirStream.iterator().hasNext()) {
-                    out.writeObject("Directory containing content. Continue? Y/n");
-                    String response = (String) in.readObject();
-                    if ("Y".equalsIgnoreCase(response)) {
-                        deleteDirectoryRecursively(dirPath);
-                        out.writeObject("Directory deleted successfully.");
-                    } else {
-                        out.writeObject("Deletion cancelled.");
-                    }
+                    Protocol.writeReply(out, Protocol.STATUS_CONFIRM, "Directory containing content. Continue? Y/n");
+                    // The answer may be a person's, so it is awaited without holding a worker.
+                    deferred = () -> confirmDeleteDirectory(dirName, dirPath);
                 } else {
                     Files.delete(dirPath);
-                    out.writeObject("Directory deleted successfully.");
+                    removed(dirPath);
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "Directory deleted successfully.");
                 }
             } catch (IOException e) {
-                out.writeObject("Error deleting directory: " + e.getMessage());
+                Protocol.writeReply(out, Protocol.STATUS_ERROR, "Error deleting directory: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Copies or moves a folder of the current directory, with everything in it, into
+         * another folder given relative to the current one. The request is checked here;
+         * the tree itself is processed by a background job.
+         */
+        private void copyOrMoveDirectory(boolean move) throws IOException {
+            String dirName = Protocol.readString(in);
+            String destination = Protocol.readString(in);
+            Path sourcePath = Paths.get(currentDir, dirName).normalize();
+            Path destDir = Paths.get(currentDir, destination).normalize();
+            Path targetPath = destDir.resolve(sourcePath.getFileName());
+
+            if (!sourcePath.startsWith(currentDir) || !metadata.stat(sourcePath).directory || sourcePath.equals(Paths.get(currentDir))) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Directory does not exist.");
+                return;
+            }
+            if (!destDir.startsWith(UPLOAD_FOLDER) || !metadata.stat(destDir).directory) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Destination directory does not exist.");
+                return;
             }
-            updatePaths();
+            if (metadata.stat(targetPath).exists) {
+                Protocol.writeReply(out, Protocol.STATUS_EXISTS, "Destination already contains " + sourcePath.getFileName() + ".");
+                return;
+            }
+            // A move is normally a single rename, so it goes ahead of copies and deletes.
+            String description = (move ? "move folder " : "copy folder ") + dirName + " -> " + destination;
+            submitJob(description, move ? JobManager.Priority.HIGH : JobManager.Priority.NORMAL, job -> {
+                try {
+                    // Within one user's folder a move changes nothing; a copy always needs room.
+                    boolean transfer = !move || !Objects.equals(quotas.ownerOf(sourcePath), quotas.ownerOf(targetPath));
+                    long size = transfer ? QuotaManager.sizeOf(sourcePath) : 0;
+                    if (!quotas.admits(targetPath, size)) {
+                        throw new IOException(quotas.deniedMessage(targetPath));
+                    }
+                    if (move) {
+                        TreeOperations.move(sourcePath, targetPath, blobStore, job::progress);
+                        moved(sourcePath, targetPath);
+                        quotas.adjust(sourcePath, -size);
+                        quotas.adjust(targetPath, size);
+                        return "Directory moved successfully.";
+                    }
+                    long entries = TreeOperations.copy(sourcePath, targetPath, blobStore, jobListener(job));
+                    copied(sourcePath, targetPath);
+                    return "Directory copied successfully (" + entries + " entries).";
+                } catch (IOException e) {
+                    treeChanged(sourcePath);
+                    treeChanged(targetPath);
+                    throw e;
+                }
+            });
         }
 
-        private void deleteDirectoryRecursively(Path path) throws IOException {
-            if (Files.isDirectory(path)) {
-                try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
-                    for (Path entry : entries) {
-                        deleteDirectoryRecursively(entry);
+        /** Reports a tree operation's progress to its job and the bytes it adds or frees to the quotas. */
+        private static TreeOperations.Listener jobListener(JobManager.Job job) {
+            return new TreeOperations.Listener() {
+                @Override
+                public void progress(long entries) {
+                    job.progress(entries);
+                }
+
+                @Override
+                public void bytes(Path root, long delta) {
+                    quotas.adjust(root, delta);
+                }
+            };
+        }
+
+        private void submitJob(String description, JobManager.Priority priority, JobManager.Work work) throws IOException {
+            JobManager.Job job;
+            try {
+                job = jobs.submit(username, description, priority, work);
+            } catch (IllegalStateException e) {
+                Protocol.writeReply(out, Protocol.STATUS_DENIED, e.getMessage());
+                return;
+            }
+            Protocol.writeReply(out, Protocol.STATUS_ACCEPTED, "Started job " + job.id + ": " + description + ".");
+            out.writeLong(job.id);
+        }
+
+        private void manageJob(byte action) throws IOException {
+            if (action == Protocol.OP_JOB_LIST) {
+                List<JobManager.Job> list = jobs.list(username);
+                Protocol.writeReply(out, Protocol.STATUS_OK, list.size() + " jobs");
+                out.writeInt(list.size());
+                for (JobManager.Job job : list) {
+                    writeJob(job);
+                }
+                return;
+            }
+            long id = in.readLong();
+            JobManager.Job job = jobs.find(username, id);
+            if (job == null) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "No job " + id + ".");
+                return;
+            }
+            switch (action) {
+                case Protocol.OP_JOB_STATUS:
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "Job " + id);
+                    writeJob(job);
+                    break;
+                case Protocol.OP_JOB_WATCH:
+                    deferred = () -> watchJob(job);
+                    break;
+                case Protocol.OP_JOB_CANCEL:
+                    if (jobs.cancel(job)) {
+                        Protocol.writeReply(out, Protocol.STATUS_OK, "Cancelling job " + id + ".");
+                    } else {
+                        Protocol.writeReply(out, Protocol.STATUS_INVALID, "Job " + id + " has already finished.");
                     }
+                    break;
+                default:
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid command");
+                    break;
+            }
+        }
+
+        /** Second half of {@link #deleteDirectory}, once the client has answered the confirmation. */
+        private void confirmDeleteDirectory(String dirName, Path dirPath) throws IOException {
+            if (!in.readBoolean()) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Deletion cancelled.");
+                return;
+            }
+            submitJob("delete folder " + dirName, JobManager.Priority.LOW, job -> {
+                try {
+                    long entries = TreeOperations.delete(dirPath, blobStore, jobListener(job));
+                    return "Directory deleted successfully (" + entries + " entries).";
+                } finally {
+                    treeChanged(dirPath);
                 }
+            });
+        }
+
+        /** Sends progress replies until the job is done, then its outcome; leaving early does not affect the job. */
+        private void watchJob(JobManager.Job job) throws IOException {
+            while (!job.awaitDone(500)) {
+                String state = job.state() == JobManager.State.QUEUED ? "waiting" : job.progress() + " entries processed";
+                Protocol.writeReply(out, Protocol.STATUS_PROGRESS, "Job " + job.id + ": " + state + "...");
+                out.flush();
             }
-            Files.delete(path);
+            byte status = job.state() == JobManager.State.SUCCEEDED ? Protocol.STATUS_OK : Protocol.STATUS_ERROR;
+            Protocol.writeReply(out, status, "Job " + job.id + " " + job.state().toString().toLowerCase() + ": " + job.message());
+        }
+
+        private void writeJob(JobManager.Job job) throws IOException {
+            out.writeLong(job.id);
+            out.writeByte(job.state().ordinal());
+            Protocol.writeString(out, job.description);
+            out.writeLong(job.progress());
+            Protocol.writeString(out, job.message());
         }
 
-        private void moveToDirectory() throws IOException, ClassNotFoundException {
-            String targetDir = (String) in.readObject();
+        private void moveToDirectory() throws IOException {
+            String targetDir = Protocol.readString(in);
             Path newPath = Paths.get(currentDir, targetDir).normalize();
-            if (Files.isDirectory(newPath) && newPath.startsWith(UPLOAD_FOLDER)) {
+            if (newPath.startsWith(UPLOAD_FOLDER) && metadata.stat(newPath).directory) {
                 currentDir = newPath.toString();
-                out.writeObject("Moved to: " + currentDir);
-                out.writeObject(currentDir);
+                Protocol.writeReply(out, Protocol.STATUS_OK, "Moved to: " + currentDir);
             } else {
-                out.writeObject("Invalid directory");
-                out.writeObject(currentDir);
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Invalid directory");
             }
+            Protocol.writeString(out, currentDir);
         }
 
 
+        /**
+         * Request: sort order, descending flag, name prefix, cursor (empty for the first
+         * page) and page size. Reply: the entries with type, size and modification time,
+         * then the cursor of the next page, empty after the last one.
+         */
         private void listCurrentDirectory() throws IOException {
-            try (Stream<Path> paths = Files.list(Path.of(currentDir))) {
-                List<String> files = paths.map(Path::getFileName)
-                        .map(Path::toString)
-                        .collect(Collectors.toList());
-                out.writeObject(files);
+            byte sort = in.readByte();
+            boolean descending = in.readBoolean();
+            String prefix = Protocol.readString(in);
+            String cursor = Protocol.readString(in);
+            int limit = in.readInt();
+
+            DirectoryListing.Page page;
+            try {
+                page = DirectoryListing.page(metadata, Path.of(currentDir), sort, descending, prefix, cursor, limit);
+            } catch (IllegalArgumentException e) {
+                Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid listing request: " + e.getMessage());
+                return;
+            }
+            Protocol.writeReply(out, Protocol.STATUS_OK, "Current directory contents:");
+            out.writeInt(page.entries.size());
+            for (MetadataCache.Entry entry : page.entries) {
+                Protocol.writeString(out, entry.name);
+                out.writeByte(entry.stat.directory ? Protocol.ENTRY_DIRECTORY
+                        : entry.stat.regularFile ? Protocol.ENTRY_FILE : Protocol.ENTRY_OTHER);
+                out.writeLong(entry.stat.size);
+                out.writeLong(entry.stat.lastModified);
+            }
+            Protocol.writeString(out, page.nextCursor == null ? "" : page.nextCursor);
+        }
+
+        /** Ranked matches by name and content anywhere in the user's folder; paths are relative to it. */
+        private void searchFiles() throws IOException {
+            String query = Protocol.readString(in);
+            int limit = Math.max(1, Math.min(in.readInt(), MAX_SEARCH_RESULTS));
+            Path home = Paths.get(UPLOAD_FOLDER, username).toAbsolutePath().normalize();
+            long start = System.nanoTime();
+            List<SearchIndex.Hit> hits = search.search(home, query, limit);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            String message = hits.size() + " matches in " + millis + " ms" + (search.isReady() ? "." : " (index still being built).");
+            Protocol.writeReply(out, Protocol.STATUS_OK, message);
+            out.writeInt(hits.size());
+            for (SearchIndex.Hit hit : hits) {
+                Protocol.writeString(out, home.relativize(Paths.get(hit.path)).toString());
+                out.writeLong(hit.size);
             }
         }
 
@@ -303,171 +1310,329 @@ public class Server {
 
             if (parentPath != null) {
                 if (parentPath.equals(serverFilesPath)) {
-                    out.writeObject("Already at root directory or invalid move");
+                    Protocol.writeReply(out, Protocol.STATUS_DENIED, "Already at root directory or invalid move");
                 } else {
                     currentDir = parentPath.toString();
-                    out.writeObject("Moved back to: " + currentDir);
+                    Protocol.writeReply(out, Protocol.STATUS_OK, "Moved back to: " + currentDir);
                 }
             } else {
-                out.writeObject("Already at root directory or invalid move");
+                Protocol.writeReply(out, Protocol.STATUS_DENIED, "Already at root directory or invalid move");
+            }
+            Protocol.writeString(out, currentDir);
+        }
+
+
+
+        /** What {@code path} counts toward its owner's quota: its size if it is a regular file, else 0. */
+        private static long storedSize(Path path) throws IOException {
+            MetadataCache.FileStat stat = metadata.stat(path);
+            return stat.regularFile ? stat.size : 0;
+        }
+
+        /** Replies DENIED and returns false if {@code growth} more bytes at {@code path} would go over its owner's quota. */
+        private boolean withinQuota(Path path, long growth) throws IOException {
+            if (quotas.admits(path, growth)) {
+                return true;
             }
-            out.writeObject(currentDir);
+            Protocol.writeReply(out, Protocol.STATUS_DENIED, quotas.deniedMessage(path));
+            return false;
         }
 
+        /**
+         * Reserves {@code growth} more bytes at {@code path} against its owner's quota, or
+         * replies DENIED and returns false if they would go over it.
+         */
+        private boolean reserveQuota(Path path, long growth) throws IOException {
+            if (quotas.reserve(path, growth)) {
+                return true;
+            }
+            Protocol.writeReply(out, Protocol.STATUS_DENIED, quotas.deniedMessage(path));
+            return false;
+        }
 
+        /**
+         * True if {@code source} and {@code target} name the same entry, so moving one onto the
+         * other changes nothing. Paths are compared rather than {@link Files#isSameFile}: files
+         * with the same content are hard links to one blob and would count as the same.
+         */
+        private static boolean isSameFile(Path source, Path target) {
+            return source.toAbsolutePath().normalize().equals(target.toAbsolutePath().normalize());
+        }
+
+        /**
+         * Deletes the file a move is about to overwrite through the blob store, so a blob it
+         * was the last link to goes with it instead of lingering until the next restart.
+         */
+        private static void deleteReplaced(Path target) throws IOException {
+            if (Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+                blobStore.delete(target);
+            }
+        }
 
-        private void manageFolder() throws IOException, ClassNotFoundException {
-            String action = (String) in.readObject();
+        private static boolean isEmptyDirectory(Path dir) throws IOException {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                return !entries.iterator().hasNext();
+            }
+        }
+
+        private boolean isFile(Path path) throws IOException {
+            MetadataCache.FileStat stat = metadata.stat(path);
+            return stat.exists && !stat.directory;
+        }
+
+        /** Records a created or rewritten path and drops anything cached about it. */
+        private Path added(Path path) {
+            pathIndex.add(path);
+            metadata.invalidate(path);
+            fileViewer.invalidate(path);
+            readCache.invalidate(path);
+            search.update(path);
+            return path;
+        }
+
+        private void addedAll(List<Path> paths) {
+            pathIndex.addAll(paths);
+            for (Path path : paths) {
+                metadata.invalidate(path);
+                fileViewer.invalidate(path);
+                readCache.invalidate(path);
+                search.update(path);
+            }
+        }
+
+        private void removedAll(List<Path> paths) {
+            pathIndex.removeAll(paths);
+            for (Path path : paths) {
+                metadata.invalidate(path);
+                fileViewer.invalidate(path);
+                readCache.invalidate(path);
+                search.update(path);
+            }
+        }
+
+        private void removed(Path path) {
+            pathIndex.remove(path);
+            metadata.invalidate(path);
+            fileViewer.invalidate(path);
+            readCache.invalidate(path);
+            search.update(path);
+        }
+
+        private void moved(Path from, Path to) {
+            pathIndex.move(from, to);
+            metadata.invalidate(from);
+            metadata.invalidate(to);
+            fileViewer.invalidate(from);
+            fileViewer.invalidate(to);
+            readCache.invalidate(from);
+            readCache.invalidate(to);
+            search.update(from);
+            search.update(to);
+        }
+
+        private void copied(Path from, Path to) {
+            pathIndex.copy(from, to);
+            metadata.invalidate(to);
+            readCache.invalidate(to);
+            search.update(to);
+        }
+
+        /** After a tree operation stopped part way: forgets whatever is gone and drops cached state either way. */
+        private void treeChanged(Path path) {
+            if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                pathIndex.remove(path);
+            }
+            metadata.invalidate(path);
+            fileViewer.invalidate(path);
+            readCache.invalidate(path);
+            search.update(path);
+        }
+
+        private void manageFolder(byte action) throws IOException {
             switch (action) {
-                case "create":
+                case Protocol.OP_CREATE_DIRECTORY:
                     createDirectory();
                     break;
-                case "rename":
+                case Protocol.OP_RENAME_DIRECTORY:
                     renameDirectory();
                     break;
-                case "delete":
+                case Protocol.OP_DELETE_DIRECTORY:
                     deleteDirectory();
                     break;
-                case "view folder":
+                case Protocol.OP_LIST_DIRECTORY:
                     listCurrentDirectory();
                     break;
-                case "Back":
-//                    goBackToParentDirectory();
-//                    break;
-                    return;
+                case Protocol.OP_COPY_DIRECTORY:
+                    copyOrMoveDirectory(false);
+                    break;
+                case Protocol.OP_MOVE_DIRECTORY:
+                    copyOrMoveDirectory(true);
+                    break;
                 default:
-                    out.writeObject("Invalid folder management command");
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid folder management command");
                     break;
             }
         }
 
-        private void manageFile() throws IOException, ClassNotFoundException {
-            String action = (String) in.readObject();
+        private void manageFile(byte action) throws IOException {
             switch (action) {
-                case "create":
+                case Protocol.OP_CREATE_FILE:
                     createFile();
                     break;
-                case "rename":
+                case Protocol.OP_RENAME_FILE:
                     renameFile();
                     break;
-                case "delete":
+                case Protocol.OP_DELETE_FILE:
                     deleteFile();
                     break;
-                case "view file":
+                case Protocol.OP_VIEW_FILE:
                     viewFile();
                     break;
-                case "copy":
+                case Protocol.OP_COPY_FILE:
                     copyFile();
                     break;
-                case "move":
+                case Protocol.OP_MOVE_FILE:
                     moveFile();
                     break;
-                case "exit":
-                    return;
                 default:
-                    out.writeObject("Invalid file management command.");
+                    Protocol.writeReply(out, Protocol.STATUS_INVALID, "Invalid file management command.");
                     break;
             }
         }
 
-        private void createFile() throws IOException, ClassNotFoundException {
-            String filePathStr = (String) in.readObject();
+        private void createFile() throws IOException {
+            String filePathStr = Protocol.readString(in);
             Path filePath = Paths.get(filePathStr);
 
-            if (Files.exists(filePath)) {
-                out.writeObject("File already exists.");
+            if (metadata.stat(filePath).exists) {
+                Protocol.writeReply(out, Protocol.STATUS_EXISTS, "File already exists.");
                 return;
             }
 
-            Files.createFile(Path.of(currentDir + "/" + filePath));
-            updatePaths();
-            out.writeObject("File created successfully.");
+            added(Files.createFile(Path.of(currentDir + "/" + filePath)));
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File created successfully.");
         }
 
-        private void renameFile() throws IOException, ClassNotFoundException {
-            String sourcePathStr = (String) in.readObject();
-            String newName = (String) in.readObject();
+        private void renameFile() throws IOException {
+            String sourcePathStr = Protocol.readString(in);
+            String newName = Protocol.readString(in);
             Path sourcePath = Paths.get(currentDir + "/" + sourcePathStr);
             Path targetPath = sourcePath.resolveSibling(newName);
 
-            if (!Files.exists(sourcePath)) {
-                out.writeObject("Source file does not exist.");
+            if (!metadata.stat(sourcePath).exists) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Source file does not exist.");
                 return;
             }
 
+            if (isSameFile(sourcePath, targetPath)) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "File renamed successfully.");
+                return;
+            }
+            long replaced = storedSize(targetPath);
+            deleteReplaced(targetPath);
             Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            updatePaths();
-            out.writeObject("File renamed successfully.");
+            moved(sourcePath, targetPath);
+            quotas.adjust(targetPath, -replaced);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File renamed successfully.");
         }
 
-        private void viewFile() throws IOException, ClassNotFoundException {
-            String filePathStr = (String) in.readObject();
+        /**
+         * Request: path, first line (0-based; negative for the last lines of the file) and
+         * line count. Reply: first line number and total line count (-1 where not known
+         * yet), then the lines.
+         */
+        private void viewFile() throws IOException {
+            String filePathStr = Protocol.readString(in);
+            long fromLine = in.readLong();
+            int count = in.readInt();
             Path filePath = Paths.get(filePathStr);
 
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-                out.writeObject("File does not exist or is a directory.");
+            if (!isFile(filePath)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "File does not exist or is a directory.");
                 return;
             }
 
-            List<String> lines = Files.readAllLines(filePath);
-            out.writeObject(lines);
-            out.writeObject("File content retrieved successfully.");
+            FileViewer.Page page = fromLine < 0 ? fileViewer.tail(filePath, count) : fileViewer.page(filePath, fromLine, count);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File content retrieved successfully.");
+            out.writeLong(page.firstLine);
+            out.writeLong(page.totalLines);
+            out.writeInt(page.lines.size());
+            for (String line : page.lines) {
+                Protocol.writeString(out, line);
+            }
         }
 
-        private void deleteFile() throws IOException, ClassNotFoundException {
-            String filePathStr = (String) in.readObject();
+        private void deleteFile() throws IOException {
+            String filePathStr = Protocol.readString(in);
             Path filePath = Paths.get(currentDir + "/" + filePathStr);
 
-            if (!Files.exists(filePath) || Files.isDirectory(filePath)) {
-                out.writeObject("File does not exist or is a directory.");
+            if (!isFile(filePath)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "File does not exist or is a directory.");
                 return;
             }
 
 //            Files.delete(Path.of(currentDir + "/" + filePath));
-            Files.delete(filePath);
-            out.writeObject("File deleted successfully.");
+            long size = storedSize(filePath);
+            blobStore.delete(filePath);
+            removed(filePath);
+            quotas.adjust(filePath, -size);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File deleted successfully.");
         }
 
 
-        private void copyFile() throws IOException, ClassNotFoundException {
-            String sourcePathStr = (String) in.readObject();
-            String destPathStr = (String) in.readObject();
+        private void copyFile() throws IOException {
+            String sourcePathStr = Protocol.readString(in);
+            String destPathStr = Protocol.readString(in);
             Path sourcePath = Paths.get(sourcePathStr);
             Path destPath = Paths.get(destPathStr, sourcePath.getFileName().toString());
-            if (!Files.exists(sourcePath) || Files.isDirectory(sourcePath)) {
-                out.writeObject("Source file does not exist or is a directory.");
+            if (!isFile(sourcePath)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Source file does not exist or is a directory.");
                 return;
             }
-            if (!Files.exists(destPath.getParent()) || !Files.isDirectory(destPath.getParent())) {
-                out.writeObject("Destination directory does not exist.");
+            if (!metadata.stat(destPath.getParent()).directory) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Destination directory does not exist.");
                 return;
             }
-            Files.copy(sourcePath, destPath, StandardCopyOption.REPLACE_EXISTING);
-            out.writeObject("File copied successfully.");
+            long size = storedSize(sourcePath);
+            long replaced = storedSize(destPath);
+            if (!withinQuota(destPath, size - replaced)) {
+                return;
+            }
+            blobStore.copy(sourcePath, destPath);
+            added(destPath);
+            quotas.adjust(destPath, size - replaced);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File copied successfully.");
         }
 
-        private void moveFile() throws IOException, ClassNotFoundException {
-            String sourcePathStr = (String) in.readObject();
-            String destPathStr = (String) in.readObject();
+        private void moveFile() throws IOException {
+            String sourcePathStr = Protocol.readString(in);
+            String destPathStr = Protocol.readString(in);
             Path sourcePath = Paths.get(sourcePathStr);
             Path destPath = Paths.get(destPathStr, sourcePath.getFileName().toString());
-            if (!Files.exists(sourcePath) || Files.isDirectory(sourcePath)) {
-                out.writeObject("Source file does not exist or is a directory.");
+            if (!isFile(sourcePath)) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Source file does not exist or is a directory.");
+                return;
+            }
+            if (!metadata.stat(destPath.getParent()).directory) {
+                Protocol.writeReply(out, Protocol.STATUS_NOT_FOUND, "Destination directory does not exist.");
+                return;
+            }
+            if (isSameFile(sourcePath, destPath)) {
+                Protocol.writeReply(out, Protocol.STATUS_OK, "File moved successfully.");
                 return;
             }
-            if (!Files.exists(destPath.getParent()) || !Files.isDirectory(destPath.getParent())) {
-                out.writeObject("Destination directory does not exist.");
+            long size = storedSize(sourcePath);
+            long replaced = storedSize(destPath);
+            boolean sameOwner = Objects.equals(quotas.ownerOf(sourcePath), quotas.ownerOf(destPath));
+            if (!withinQuota(destPath, sameOwner ? -replaced : size - replaced)) {
                 return;
             }
+            deleteReplaced(destPath);
             Files.move(sourcePath, destPath, StandardCopyOption.REPLACE_EXISTING);
-            out.writeObject("File moved successfully.");
-        }
-
-
-        private void updatePaths() throws IOException {
-            List<String> paths = new ArrayList<>();
-            Files.walk(Paths.get(currentDir)).forEach(path -> paths.add(path.toString()));
-            savePaths(paths);
+            moved(sourcePath, destPath);
+            quotas.adjust(sourcePath, -size);
+            quotas.adjust(destPath, size - replaced);
+            Protocol.writeReply(out, Protocol.STATUS_OK, "File moved successfully.");
         }
     }
 }
\ No newline at end of file
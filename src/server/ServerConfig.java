@@ -0,0 +1,50 @@
+package server;
+
+import utils.Compression;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Server tunables, read once from system properties at startup
+ * (e.g. {@code -Dserver.engine=selector -Dserver.maxConnections=20000}).
+ */
+final class ServerConfig {
+    /** {@code virtual} runs one virtual thread per session, {@code selector} parks idle sessions in an NIO selector. */
+    static final String ENGINE = System.getProperty("server.engine", "virtual");
+    static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 10_000);
+    static final int ACCEPT_BACKLOG = Integer.getInteger("server.backlog", 1024);
+    /** Threads that run commands for the selector engine; idle sessions do not occupy one. */
+    static final int WORKER_THREADS = Integer.getInteger("server.workers", Runtime.getRuntime().availableProcessors() * 4);
+
+    /** Codecs sessions may negotiate, e.g. {@code fast,deflate}; {@code none} turns transfer compression off. */
+    static final byte[] COMPRESSION = Compression.parseList(System.getProperty("server.compression", "fast,deflate"));
+
+    /** Threads that delete and copy the files of folder trees; shared by all sessions. */
+    static final int TREE_THREADS = Integer.getInteger("server.treeThreads", Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    /** Background jobs: worker threads, jobs allowed to wait, and jobs one user may have running at once. */
+    static final int JOB_THREADS = Integer.getInteger("server.jobThreads", Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+    static final int JOB_QUEUE = Integer.getInteger("server.jobQueue", 1000);
+    static final int JOBS_PER_USER = Integer.getInteger("server.jobsPerUser", 2);
+    /** Files larger than this are found by name only; their content is not indexed for search. */
+    static final long SEARCH_MAX_CONTENT_BYTES = Long.getLong("server.searchMaxContentBytes", 4L * 1024 * 1024);
+    /** Transfer rate limits in bytes per second, for the whole server and for each user; 0 means unlimited. Adjustable over JMX. */
+    static final long GLOBAL_BYTES_PER_SECOND = Long.getLong("server.globalBytesPerSecond", 0);
+    static final long USER_BYTES_PER_SECOND = Long.getLong("server.userBytesPerSecond", 0);
+    /** Bytes each user may store, unless the quota file says otherwise; 0 means unlimited. */
+    static final long QUOTA_BYTES = Long.getLong("server.quotaBytes", 10L * 1024 * 1024 * 1024);
+    /** Comma-separated users allowed to read server statistics with the stats command. */
+    static final Set<String> ADMINS = Set.copyOf(Arrays.asList(System.getProperty("server.admins", "admin").split("\\s*,\\s*")));
+    /** Sessions kept for resuming after a dropped connection, and how long one may sit unused. */
+    static final int SESSIONS = Integer.getInteger("server.sessions", 100_000);
+    static final long SESSION_TTL_SECONDS = Long.getLong("server.sessionTtlSeconds", 30 * 60);
+    /** Off-heap memory for the contents of popular files, and the largest file it will hold; 0 turns the cache off. */
+    static final long READ_CACHE_BYTES = Long.getLong("server.readCacheBytes", 64L * 1024 * 1024);
+    static final long READ_CACHE_MAX_FILE_BYTES = Long.getLong("server.readCacheMaxFileBytes", 4L * 1024 * 1024);
+    /** Limits of the metadata cache: directories watched, and attribute entries kept across all of them. */
+    static final int METADATA_CACHE_DIRECTORIES = Integer.getInteger("server.metadataCacheDirectories", 4096);
+    static final int METADATA_CACHE_ENTRIES = Integer.getInteger("server.metadataCacheEntries", 200_000);
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Logged-in sessions by token, so a client whose connection dropped can carry on over
+ * a new one with {@code resume} instead of logging in again.
+ * <p>
+ * The table is in least recently used order and bounded: past {@link #capacity}
+ * entries the oldest is dropped, and entries idle for longer than the time to live are
+ * dropped whenever the table is touched. Only sessions that disconnected need to be
+ * here, so a connection puts its session back (as the newest) when it closes; one
+ * evicted while its connection was still open is simply re-added then. Parallel
+ * transfers and partial uploads are keyed by user rather than connection, so they
+ * outlive the connection without being tracked here.
+ */
+class SessionTable {
+    private final int capacity;
+    private final long ttlMillis;
+    private final Map<String, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final SecureRandom random = new SecureRandom();
+
+    SessionTable(int capacity, long ttlMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.ttlMillis = ttlMillis;
+    }
+
+    Session open(String username, String currentDir, Object connection) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        Session session = new Session(HexFormat.of().formatHex(bytes), username, currentDir, connection);
+        synchronized (this) {
+            put(session);
+        }
+        return session;
+    }
+
+    /** Hands the session to {@code connection}, or returns null if the token is unknown or expired. */
+    synchronized Session resume(String token, Object connection) {
+        expire(System.currentTimeMillis());
+        Session session = sessions.get(token);
+        if (session != null) {
+            session.connection = connection;
+            session.lastUsed = System.currentTimeMillis();
+        }
+        return session;
+    }
+
+    /** Keeps the session for a later resume, unless another connection has taken it over since. */
+    synchronized void detach(Session session, Object connection) {
+        if (session.connection == connection && !session.closed) {
+            session.connection = null;
+            session.lastUsed = System.currentTimeMillis();
+            sessions.remove(session.token);
+            put(session);
+        }
+    }
+
+    /** Ends the session on logout; its token stops working everywhere. */
+    synchronized void close(Session session) {
+        session.closed = true;
+        sessions.remove(session.token);
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    private void put(Session session) {
+        sessions.put(session.token, session);
+        expire(session.lastUsed);
+        Iterator<Session> it = sessions.values().iterator();
+        while (sessions.size() > capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void expire(long now) {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastUsed <= ttlMillis) {
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    static final class Session {
+        final String token;
+        final String username;
+        /** Kept up to date by the connection using the session, for whoever resumes it next. */
+        volatile String currentDir;
+        private Object connection;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean closed;
+
+        Session(String token, String username, String currentDir, Object connection) {
+            this.token = token;
+            this.username = username;
+            this.currentDir = currentDir;
+            this.connection = connection;
+        }
+    }
+}
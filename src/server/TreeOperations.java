@@ -0,0 +1,306 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recursive delete, copy and move of directory trees.
+ * <p>
+ * The calling thread walks the tree with {@link Files#walkFileTree}, which keeps its
+ * own stack instead of recursing, so deep trees are fine. Files are handed to a shared
+ * pool in batches as the walk goes, with only a few batches per worker in flight, so
+ * a huge tree does not pile up in memory. Directories are created before their
+ * contents are queued. On delete they are removed in post-order, once every file batch
+ * has finished. While it waits, the calling thread reports progress to the
+ * {@link Listener}. Interrupting that thread cancels the operation: no new files are
+ * started, the ones in flight finish, and a partial copy is removed again. Every batch
+ * also reports the file bytes it added or removed, so storage accounting stays right
+ * however far the operation got.
+ */
+final class TreeOperations {
+    private static final Logger LOGGER = Logger.getLogger(TreeOperations.class.getName());
+    private static final int BATCH_SIZE = 256;
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+    private static final ForkJoinPool POOL = new ForkJoinPool(ServerConfig.TREE_THREADS);
+
+    interface Listener {
+        void progress(long entries) throws IOException;
+
+        /** File bytes added below {@code root} by a copy, or removed (negative) by a delete; called from pool threads. */
+        default void bytes(Path root, long delta) {
+        }
+    }
+
+    private interface PathAction {
+        void apply(Path path) throws IOException;
+    }
+
+    private TreeOperations() {
+    }
+
+    /** Deletes {@code root} and everything below it; returns the number of entries removed. */
+    static long delete(Path root, BlobStore blobs, Listener listener) throws IOException {
+        Run run = new Run(listener, blobs::delete, root, -1);
+        List<Path> directories = new ArrayList<>();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    run.add(file);
+                    return run.failed() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    directories.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            run.flush();
+            run.awaitAll();
+        } catch (IOException e) {
+            run.awaitQuietly();
+            throw e;
+        }
+        for (Path dir : directories) {
+            run.checkInterrupted();
+            Files.delete(dir);
+            run.entries.incrementAndGet();
+            run.report();
+        }
+        return run.entries.get();
+    }
+
+    /** Copies {@code source} to {@code target}, which must not exist; a failed copy is removed again. */
+    static long copy(Path source, Path target, BlobStore blobs, Listener listener) throws IOException {
+        if (target.toAbsolutePath().normalize().startsWith(source.toAbsolutePath().normalize())) {
+            throw new IOException("Cannot copy a folder into itself");
+        }
+        Run run = new Run(listener, path -> blobs.copy(path, target.resolve(source.relativize(path))), target, 1);
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    run.checkInterrupted();
+                    Files.createDirectory(target.resolve(source.relativize(dir)));
+                    run.entries.incrementAndGet();
+                    return run.failed() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        run.add(file);
+                    } else {
+                        Files.copy(file, target.resolve(source.relativize(file)), LinkOption.NOFOLLOW_LINKS);
+                        run.entries.incrementAndGet();
+                    }
+                    return run.failed() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            run.flush();
+            run.awaitAll();
+        } catch (IOException e) {
+            run.awaitQuietly();
+            removePartialCopy(target, blobs, listener);
+            throw e;
+        }
+        return run.entries.get();
+    }
+
+    /** Renames {@code source} to {@code target}, falling back to copy and delete across file systems. */
+    static long move(Path source, Path target, BlobStore blobs, Listener listener) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            return 1;
+        } catch (AtomicMoveNotSupportedException e) {
+            long copied = copy(source, target, blobs, listener);
+            delete(source, blobs, listener);
+            return copied;
+        }
+    }
+
+    private static void removePartialCopy(Path target, BlobStore blobs, Listener listener) {
+        if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            delete(target, blobs, new Listener() {
+                @Override
+                public void progress(long entries) {
+                }
+
+                @Override
+                public void bytes(Path root, long delta) {
+                    listener.bytes(root, delta);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not remove partial copy " + target, e);
+        }
+    }
+
+    /** Bookkeeping for one operation: the batch being filled, in-flight batches, progress and the first failure. */
+    private static final class Run {
+        final AtomicLong entries = new AtomicLong();
+        private final Listener listener;
+        private final PathAction action;
+        private final Path root;
+        private final int sign;
+        private final Semaphore slots = new Semaphore(ServerConfig.TREE_THREADS * 4);
+        private final AtomicInteger pending = new AtomicInteger();
+        private final Object idle = new Object();
+        private volatile IOException failure;
+        private List<Path> batch = new ArrayList<>(BATCH_SIZE);
+        private long lastReport = System.nanoTime();
+
+        /** {@code sign} is 1 if the action adds its file's bytes below {@code root}, -1 if it removes them. */
+        Run(Listener listener, PathAction action, Path root, int sign) {
+            this.listener = listener;
+            this.action = action;
+            this.root = root;
+            this.sign = sign;
+        }
+
+        boolean failed() {
+            return failure != null;
+        }
+
+        void add(Path path) throws IOException {
+            checkInterrupted();
+            batch.add(path);
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /** Hands the current batch to the pool, first waiting for a free slot if too many are in flight. */
+        void flush() throws IOException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Path> paths = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                while (!slots.tryAcquire(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    report();
+                }
+            } catch (InterruptedException e) {
+                throw cancelled();
+            }
+            pending.incrementAndGet();
+            POOL.execute(() -> {
+                long bytes = 0;
+                try {
+                    for (Path path : paths) {
+                        if (failure != null) {
+                            break;
+                        }
+                        long size = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+                        action.apply(path);
+                        bytes += size;
+                        entries.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(new IOException(e));
+                } finally {
+                    if (bytes != 0) {
+                        listener.bytes(root, sign * bytes);
+                    }
+                    slots.release();
+                    if (pending.decrementAndGet() == 0) {
+                        synchronized (idle) {
+                            idle.notifyAll();
+                        }
+                    }
+                }
+            });
+            report();
+        }
+
+        /** Waits for every submitted batch, reporting progress meanwhile, and rethrows the first failure. */
+        void awaitAll() throws IOException {
+            while (true) {
+                synchronized (idle) {
+                    if (pending.get() == 0) {
+                        break;
+                    }
+                    try {
+                        idle.wait(PROGRESS_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        throw cancelled();
+                    }
+                }
+                report();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        void awaitQuietly() {
+            try {
+                awaitAll();
+            } catch (IOException e) {
+                // already failing; the original error is reported
+            }
+        }
+
+        void report() throws IOException {
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL_MILLIS)) {
+                lastReport = now;
+                listener.progress(entries.get());
+            }
+        }
+
+        /** Turns an interrupt of the calling thread into a cancellation of the whole run. */
+        void checkInterrupted() throws InterruptedIOException {
+            if (Thread.interrupted()) {
+                throw cancelled();
+            }
+        }
+
+        private InterruptedIOException cancelled() {
+            InterruptedIOException e = new InterruptedIOException("Cancelled");
+            fail(e);
+            return e;
+        }
+
+        private void fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+}
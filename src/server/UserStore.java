@@ -0,0 +1,215 @@
+package server;
+
+import utils.User;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Accounts keyed by username.
+ * <p>
+ * The snapshot file keeps the original format (a serialized {@code List<User>}).
+ * New registrations are appended to a journal as {@code [int length][payload][int crc]}
+ * records, so registering costs one small write instead of rewriting every account.
+ * On load the journal is replayed up to the first torn or corrupt record, then folded
+ * into a fresh snapshot.
+ */
+class UserStore {
+    private static final Logger LOGGER = Logger.getLogger(UserStore.class.getName());
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+    private final Object journalLock = new Object();
+    private FileChannel journal;
+
+    UserStore(Path snapshotFile, Path journalFile) {
+        this.snapshotFile = snapshotFile;
+        this.journalFile = journalFile;
+    }
+
+    void load() throws IOException {
+        synchronized (journalLock) {
+            users.clear();
+            loadSnapshot();
+            int replayed = replayJournal();
+            if (replayed > 0) {
+                LOGGER.info("Replayed " + replayed + " registrations from journal.");
+                compact();
+            }
+        }
+    }
+
+    /** Returns the stored user when the credentials match, otherwise null. */
+    User authenticate(String username, String password) {
+        User user = users.get(username);
+        if (user != null && user.getPassword().equals(password)) {
+            return user;
+        }
+        return null;
+    }
+
+    /** Returns false if the username is taken. Concurrent registrations of one name have exactly one winner. */
+    boolean register(User user) throws IOException {
+        if (users.putIfAbsent(user.getUsername(), user) != null) {
+            return false;
+        }
+        try {
+            appendToJournal(user);
+        } catch (IOException e) {
+            users.remove(user.getUsername(), user);
+            throw e;
+        }
+        return true;
+    }
+
+    boolean exists(String username) {
+        return users.containsKey(username);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    void close() {
+        synchronized (journalLock) {
+            closeJournal();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void loadSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile) || Files.size(snapshotFile) == 0) {
+            return;
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            for (User user : (List<User>) ois.readObject()) {
+                users.put(user.getUsername(), user);
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unreadable user snapshot", e);
+        }
+    }
+
+    private int replayJournal() throws IOException {
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        int replayed = 0;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > 64 * 1024) {
+                    LOGGER.warning("Corrupt journal record length " + length + ", ignoring the rest of the journal.");
+                    break;
+                }
+                byte[] payload = new byte[length];
+                int crc;
+                try {
+                    in.readFully(payload);
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    LOGGER.warning("Torn journal record at offset " + validLength + ", ignoring it.");
+                    break;
+                }
+                if (crc != checksum(payload)) {
+                    LOGGER.warning("Journal checksum mismatch at offset " + validLength + ", ignoring the rest of the journal.");
+                    break;
+                }
+                User user = decode(payload);
+                users.putIfAbsent(user.getUsername(), user);
+                validLength += 4 + length + 4;
+                replayed++;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+        }
+        return replayed;
+    }
+
+    private void appendToJournal(User user) throws IOException {
+        byte[] payload = encode(user);
+        ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 4);
+        record.putInt(payload.length).put(payload).putInt(checksum(payload)).flip();
+        synchronized (journalLock) {
+            if (journal == null) {
+                journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            while (record.hasRemaining()) {
+                journal.write(record);
+            }
+            journal.force(false);
+        }
+    }
+
+    /** Rewrites the snapshot with every account and empties the journal. */
+    private void compact() {
+        Path temp = Paths.get(snapshotFile + ".tmp");
+        try {
+            try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                oos.writeObject(new ArrayList<>(users.values()));
+            }
+            Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            closeJournal();
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error compacting users: ", e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error closing user journal: ", e);
+            }
+            journal = null;
+        }
+    }
+
+    private static byte[] encode(User user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(user.getUsername());
+            out.writeUTF(user.getPassword());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static User decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            return new User(in.readUTF(), in.readUTF());
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,28 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** One virtual thread per session; a session blocked on its next command costs no OS thread. */
+class VirtualThreadEngine extends ConnectionEngine {
+    private final Thread.Builder sessions = Thread.ofVirtual().name("session-", 0);
+
+    @Override
+    void serve(ServerSocketChannel serverChannel) throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            if (!admit(channel)) {
+                continue;
+            }
+            Server.ClientHandler handler = new Server.ClientHandler(channel.socket());
+            sessions.start(() -> {
+                try {
+                    handler.run();
+                } finally {
+                    release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-chunk compression for file transfers.
+ * <p>
+ * A session negotiates one codec; each chunk is then compressed on its own, so
+ * streaming and resuming work exactly as without compression, and a chunk that
+ * does not shrink is simply sent as is. Both codecs produce raw deflate data, so
+ * the receiver needs no codec state: {@link #FAST} trades ratio for speed
+ * ({@link Deflater#BEST_SPEED}), {@link #DEFLATE} uses the default level.
+ * Files whose type is already compressed are always sent plain.
+ */
+public final class Compression {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+    public static final byte FAST = 2;
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4", "jar", "apk",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "avi", "mov", "webm");
+
+    private Compression() {
+    }
+
+    public static String nameOf(byte codec) {
+        switch (codec) {
+            case NONE: return "none";
+            case DEFLATE: return "deflate";
+            case FAST: return "fast";
+            default: return "unknown (" + codec + ")";
+        }
+    }
+
+    /** Parses a comma-separated list such as {@code fast,deflate}; unknown names are ignored. */
+    public static byte[] parseList(String names) {
+        byte[] codecs = new byte[3];
+        int count = 0;
+        for (String name : names.split(",")) {
+            switch (name.trim().toLowerCase(Locale.ROOT)) {
+                case "deflate":
+                    codecs[count++] = DEFLATE;
+                    break;
+                case "fast":
+                    codecs[count++] = FAST;
+                    break;
+                default:
+                    break;
+            }
+            if (count == codecs.length) {
+                break;
+            }
+        }
+        return Arrays.copyOf(codecs, count);
+    }
+
+    /** The codec to use for {@code fileName} in a session that negotiated {@code sessionCodec}. */
+    public static byte forFile(byte sessionCodec, String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_TYPES.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return NONE;
+        }
+        return sessionCodec;
+    }
+
+    /** Returns a raw deflater for {@code codec}, or null for {@link #NONE}. */
+    public static Deflater newDeflater(byte codec) {
+        switch (codec) {
+            case NONE: return null;
+            case FAST: return new Deflater(Deflater.BEST_SPEED, true);
+            default: return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    }
+
+    public static Inflater newInflater() {
+        return new Inflater(true);
+    }
+
+    /**
+     * Compresses {@code length} bytes of {@code data} into {@code target}. Returns the
+     * compressed length, or -1 if the result would not be smaller than the input.
+     */
+    public static int deflate(Deflater deflater, byte[] data, int length, byte[] target) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int written = 0;
+        int limit = Math.min(length - 1, target.length);
+        while (!deflater.finished() && written < limit) {
+            written += deflater.deflate(target, written, limit - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    /** Inflates one compressed chunk into {@code target}, returning the number of bytes produced. */
+    public static int inflate(Inflater inflater, byte[] data, int length, byte[] target) throws IOException {
+        inflater.reset();
+        inflater.setInput(data, 0, length);
+        int written = 0;
+        try {
+            while (!inflater.finished() && written < target.length) {
+                int n = inflater.inflate(target, written, target.length - written);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                written += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed chunk", e);
+        }
+        if (!inflater.finished()) {
+            throw new IOException("Corrupt or oversized compressed chunk");
+        }
+        return written;
+    }
+}
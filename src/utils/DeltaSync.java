@@ -0,0 +1,420 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * rsync-style delta transfer.
+ * <p>
+ * The server describes its copy as fixed-size blocks, each with a rolling weak
+ * checksum and an MD5. The client slides a window over its new version, looks the
+ * weak checksum up at every offset and confirms hits with the MD5; matching blocks
+ * go out as references, everything else as literal bytes. The server then rebuilds
+ * the file from its old copy and the literals.
+ * <p>
+ * Signatures: {@code [int blockSize][long basisLength]} then {@code [int weak][16 bytes md5]}
+ * per block. Delta: a sequence of {@link #LITERAL} {@code [int length][bytes]} and
+ * {@link #COPY} {@code [int block]} instructions closed by {@link #END}. As in
+ * {@link FileTransfer}'s chunks, a negative literal length means deflated bytes.
+ */
+public final class DeltaSync {
+    public static final byte END = 0;
+    public static final byte LITERAL = 1;
+    public static final byte COPY = 2;
+    public static final int STRONG_LENGTH = 16;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private DeltaSync() {
+    }
+
+    /** Roughly sqrt(length), as rsync does, so the signature list and the block granularity grow together. */
+    public static int blockSizeFor(long length) {
+        long size = (long) Math.sqrt((double) length) & ~511L;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /** Writes the signatures of {@code basis} and returns the block size they were computed with. */
+    public static int writeSignatures(FileChannel basis, DataOutput out) throws IOException {
+        long length = basis.size();
+        int blockSize = blockSizeFor(length);
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        out.writeInt(blockSize);
+        out.writeLong(length);
+
+        MessageDigest md5 = newStrongDigest();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blockCount; i++) {
+            int read = readBlock(basis, (long) i * blockSize, block);
+            out.writeInt(weakChecksum(block, 0, read));
+            md5.update(block, 0, read);
+            out.write(md5.digest());
+        }
+        return blockSize;
+    }
+
+    /** Writes an empty signature list, meaning "no basis, send everything as literals". */
+    public static void writeNoSignatures(DataOutput out) throws IOException {
+        out.writeInt(MIN_BLOCK_SIZE);
+        out.writeLong(0);
+    }
+
+    public static Signatures readSignatures(DataInput in) throws IOException {
+        int blockSize = in.readInt();
+        long basisLength = in.readLong();
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || basisLength < 0
+                || (basisLength + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+            throw new IOException("Invalid signature header: " + blockSize + "/" + basisLength);
+        }
+        int blockCount = (int) ((basisLength + blockSize - 1) / blockSize);
+        Signatures signatures = new Signatures(blockSize, blockCount,
+                blockCount == 0 ? 0 : (int) (basisLength - (long) (blockCount - 1) * blockSize));
+        for (int i = 0; i < blockCount; i++) {
+            int weak = in.readInt();
+            byte[] strong = new byte[STRONG_LENGTH];
+            in.readFully(strong);
+            signatures.add(i, weak, strong);
+        }
+        return signatures;
+    }
+
+    /**
+     * Streams the delta that turns the server's basis into {@code source}.
+     * Returns the number of literal bytes sent.
+     */
+    public static long writeDelta(FileChannel source, Signatures signatures, DataOutput out, byte codec) throws IOException {
+        LiteralWriter literals = new LiteralWriter(out, codec);
+        try {
+            return writeDelta(source, signatures, out, literals);
+        } finally {
+            literals.end();
+        }
+    }
+
+    private static long writeDelta(FileChannel source, Signatures signatures, DataOutput out, LiteralWriter literals) throws IOException {
+        int n = signatures.blockSize;
+        byte[] literal = new byte[FileTransfer.CHUNK_SIZE];
+        int literalLength = 0;
+        long literalTotal = 0;
+
+        if (signatures.isEmpty()) {
+            ByteBuffer buffer = ByteBuffer.wrap(literal);
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (read > 0) {
+                    literals.write(literal, read);
+                    literalTotal += read;
+                }
+                buffer.clear();
+            }
+            out.writeByte(END);
+            return literalTotal;
+        }
+
+        MessageDigest md5 = newStrongDigest();
+        byte[] buf = new byte[Math.max(2 * n + 1, FileTransfer.CHUNK_SIZE)];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        while (true) {
+            if (end - start < n + 1 && !eof) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                ByteBuffer fill = ByteBuffer.wrap(buf, end, buf.length - end);
+                while (fill.hasRemaining()) {
+                    if (source.read(fill) == -1) {
+                        eof = true;
+                        break;
+                    }
+                }
+                end = fill.position();
+            }
+            int available = end - start;
+            if (available < n) {
+                break;
+            }
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < n; i++) {
+                    int x = buf[start + i] & 0xFF;
+                    a += x;
+                    b += (n - i) * x;
+                }
+                rolling = true;
+            }
+
+            int block = signatures.find(a & 0xFFFF | (b & 0xFFFF) << 16, buf, start, n, md5);
+            if (block >= 0) {
+                if (literalLength > 0) {
+                    literals.write(literal, literalLength);
+                    literalTotal += literalLength;
+                    literalLength = 0;
+                }
+                out.writeByte(COPY);
+                out.writeInt(block);
+                start += n;
+                rolling = false;
+                continue;
+            }
+
+            int leaving = buf[start] & 0xFF;
+            literal[literalLength++] = buf[start];
+            if (literalLength == literal.length) {
+                literals.write(literal, literalLength);
+                literalTotal += literalLength;
+                literalLength = 0;
+            }
+            start++;
+            if (end - start >= n) {
+                int entering = buf[start + n - 1] & 0xFF;
+                a += entering - leaving;
+                b += a - n * leaving;
+            } else {
+                rolling = false;
+            }
+        }
+
+        // The basis' last block may be shorter than the others; the tail can still match it.
+        int tail = end - start;
+        if (tail > 0 && tail == signatures.lastBlockLength()) {
+            int last = signatures.blockCount - 1;
+            if (signatures.matches(last, weakChecksum(buf, start, tail), buf, start, tail, md5)) {
+                if (literalLength > 0) {
+                    literals.write(literal, literalLength);
+                    literalTotal += literalLength;
+                    literalLength = 0;
+                }
+                out.writeByte(COPY);
+                out.writeInt(last);
+                tail = 0;
+            }
+        }
+        for (int i = 0; i < tail; i++) {
+            literal[literalLength++] = buf[start + i];
+            if (literalLength == literal.length) {
+                literals.write(literal, literalLength);
+                literalTotal += literalLength;
+                literalLength = 0;
+            }
+        }
+        if (literalLength > 0) {
+            literals.write(literal, literalLength);
+            literalTotal += literalLength;
+        }
+        out.writeByte(END);
+        return literalTotal;
+    }
+
+    /**
+     * Rebuilds the new version into {@code target} from {@code basis} (may be null when
+     * no signatures were sent) and the incoming delta. Returns the number of blocks reused.
+     * Fails as soon as the rebuilt file would grow past {@code limit} bytes.
+     */
+    public static long applyDelta(DataInput in, FileChannel basis, int blockSize, FileChannel target, MessageDigest digest,
+                                  long limit) throws IOException {
+        byte[] buffer = new byte[Math.max(blockSize, FileTransfer.CHUNK_SIZE)];
+        byte[] compressed = null;
+        Inflater inflater = null;
+        long reused = 0;
+        long written = 0;
+        long blockCount = basis == null ? 0 : (basis.size() + blockSize - 1) / blockSize;
+        try {
+            while (true) {
+                byte instruction = in.readByte();
+                int length;
+                if (instruction == END) {
+                    return reused;
+                } else if (instruction == LITERAL) {
+                    length = in.readInt();
+                    if (length == 0 || length < -FileTransfer.CHUNK_SIZE || length > FileTransfer.CHUNK_SIZE) {
+                        throw new IOException("Invalid literal length: " + length);
+                    }
+                    if (length < 0) {
+                        if (inflater == null) {
+                            inflater = Compression.newInflater();
+                            compressed = new byte[FileTransfer.CHUNK_SIZE];
+                        }
+                        in.readFully(compressed, 0, -length);
+                        length = Compression.inflate(inflater, compressed, -length, buffer);
+                    } else {
+                        in.readFully(buffer, 0, length);
+                    }
+                } else if (instruction == COPY) {
+                    int block = in.readInt();
+                    if (block < 0 || block >= blockCount) {
+                        throw new IOException("Invalid block reference: " + block);
+                    }
+                    length = readBlock(basis, (long) block * blockSize, buffer, blockSize);
+                    reused++;
+                } else {
+                    throw new IOException("Invalid delta instruction: " + instruction);
+                }
+                written += length;
+                if (written > limit) {
+                    throw new IOException("Data past the end of the file");
+                }
+                digest.update(buffer, 0, length);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+                while (data.hasRemaining()) {
+                    target.write(data);
+                }
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        return a & 0xFFFF | (b & 0xFFFF) << 16;
+    }
+
+
+    private static int readBlock(FileChannel channel, long position, byte[] block) throws IOException {
+        return readBlock(channel, position, block, block.length);
+    }
+
+    private static int readBlock(FileChannel channel, long position, byte[] block, int blockSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(blockSize, channel.size() - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw new EOFException("Basis file shrank during delta");
+            }
+        }
+        return buffer.position();
+    }
+
+    private static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /** Writes literal instructions, deflating each one when that makes it smaller. */
+    private static final class LiteralWriter {
+        private final DataOutput out;
+        private final Deflater deflater;
+        private final byte[] compressed;
+
+        LiteralWriter(DataOutput out, byte codec) {
+            this.out = out;
+            this.deflater = Compression.newDeflater(codec);
+            this.compressed = deflater == null ? null : new byte[FileTransfer.CHUNK_SIZE];
+        }
+
+        void write(byte[] data, int length) throws IOException {
+            int packed = deflater == null ? -1 : Compression.deflate(deflater, data, length, compressed);
+            out.writeByte(LITERAL);
+            if (packed > 0) {
+                out.writeInt(-packed);
+                out.write(compressed, 0, packed);
+            } else {
+                out.writeInt(length);
+                out.write(data, 0, length);
+            }
+        }
+
+        void end() {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /** The server's block signatures, indexed by weak checksum for the client's rolling search. */
+    public static final class Signatures {
+        private final int blockSize;
+        private final int blockCount;
+        private final int[] weak;
+        private final byte[][] strong;
+        private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+        private final int lastBlockLength;
+
+        Signatures(int blockSize, int blockCount, int lastBlockLength) {
+            this.blockSize = blockSize;
+            this.blockCount = blockCount;
+            this.lastBlockLength = lastBlockLength;
+            this.weak = new int[blockCount];
+            this.strong = new byte[blockCount][];
+        }
+
+        void add(int index, int weakSum, byte[] strongSum) {
+            weak[index] = weakSum;
+            strong[index] = strongSum;
+            blocksByWeak.merge(weakSum, new int[]{index}, (existing, added) -> {
+                int[] merged = Arrays.copyOf(existing, existing.length + 1);
+                merged[existing.length] = added[0];
+                return merged;
+            });
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return blockCount;
+        }
+
+        public boolean isEmpty() {
+            return blockCount == 0;
+        }
+
+        int lastBlockLength() {
+            return lastBlockLength;
+        }
+
+        int find(int weakSum, byte[] data, int offset, int length, MessageDigest md5) {
+            int[] candidates = blocksByWeak.get(weakSum);
+            if (candidates == null) {
+                return -1;
+            }
+            md5.update(data, offset, length);
+            byte[] digest = md5.digest();
+            for (int candidate : candidates) {
+                if (candidate == blockCount - 1 && lastBlockLength != length) {
+                    continue;
+                }
+                if (Arrays.equals(strong[candidate], digest)) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+
+        boolean matches(int index, int weakSum, byte[] data, int offset, int length, MessageDigest md5) {
+            if (weak[index] != weakSum) {
+                return false;
+            }
+            md5.update(data, offset, length);
+            return Arrays.equals(strong[index], md5.digest());
+        }
+    }
+}
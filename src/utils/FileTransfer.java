@@ -0,0 +1,273 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Chunked file streaming shared by client and server.
+ * <p>
+ * A file is sent as a sequence of {@code [int length][bytes]} chunks of at most
+ * {@link #CHUNK_SIZE} bytes, terminated by a chunk of length 0, so neither side
+ * ever holds more than one chunk in memory. A negative length means the chunk
+ * was compressed (see {@link Compression}) and {@code -length} deflated bytes
+ * follow; receivers always accept both.
+ * <p>
+ * Uncompressed downloads use raw framing instead: a {@code long} length followed
+ * by exactly that many bytes, which lets the server hand the file to the socket
+ * with {@link FileChannel#transferTo} and the client stream it straight to disk.
+ */
+public final class FileTransfer {
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private FileTransfer() {
+    }
+
+    public static long sendChunks(FileChannel source, DataOutput out) throws IOException {
+        return sendChunks(source, out, Compression.NONE);
+    }
+
+    /** Sends from the channel's position to its end, compressing chunks with {@code codec}. */
+    public static long sendChunks(FileChannel source, DataOutput out, byte codec) throws IOException {
+        long position = source.position();
+        return sendChunks(source, position, source.size() - position, out, codec);
+    }
+
+    public static long sendChunks(FileChannel source, long position, long count, DataOutput out, byte codec) throws IOException {
+        return sendChunks((offset, chunk, length) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + offset + buffer.position()) == -1) {
+                    throw new EOFException("File truncated during transfer");
+                }
+            }
+        }, count, out, codec);
+    }
+
+    /** Sends the remaining bytes of {@code source}, leaving its position where it was. */
+    public static long sendChunks(ByteBuffer source, DataOutput out, byte codec) throws IOException {
+        int start = source.position();
+        return sendChunks((offset, chunk, length) -> source.get(start + (int) offset, chunk, 0, length),
+                source.remaining(), out, codec);
+    }
+
+    private static long sendChunks(ChunkSource source, long count, DataOutput out, byte codec) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] compressed = null;
+        Deflater deflater = Compression.newDeflater(codec);
+        if (deflater != null) {
+            compressed = new byte[CHUNK_SIZE];
+        }
+        try {
+            long total = 0;
+            while (total < count) {
+                int read = (int) Math.min(CHUNK_SIZE, count - total);
+                source.read(total, chunk, read);
+                int packed = deflater == null ? -1 : Compression.deflate(deflater, chunk, read, compressed);
+                if (packed > 0) {
+                    out.writeInt(-packed);
+                    out.write(compressed, 0, packed);
+                } else {
+                    out.writeInt(read);
+                    out.write(chunk, 0, read);
+                }
+                total += read;
+            }
+            out.writeInt(0);
+            return total;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    public static long receiveChunks(DataInput in, FileChannel target) throws IOException {
+        return receiveChunks(in, target, null);
+    }
+
+    /**
+     * Like {@link #receiveChunks(DataInput, FileChannel)}, also feeding every chunk to {@code digest}
+     * if it is not null. A null {@code target} discards the data.
+     */
+    public static long receiveChunks(DataInput in, FileChannel target, MessageDigest digest) throws IOException {
+        return receiveChunks(in, target, digest, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #receiveChunks(DataInput, FileChannel, MessageDigest)}, but fails as soon
+     * as the stream carries more than {@code limit} bytes.
+     */
+    public static long receiveChunks(DataInput in, FileChannel target, MessageDigest digest, long limit) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] compressed = null;
+        Inflater inflater = null;
+        long total = 0;
+        int length;
+        try {
+            while ((length = readChunkLength(in)) != 0) {
+                if (length < 0) {
+                    if (inflater == null) {
+                        inflater = Compression.newInflater();
+                        compressed = new byte[CHUNK_SIZE];
+                    }
+                    in.readFully(compressed, 0, -length);
+                    length = Compression.inflate(inflater, compressed, -length, chunk);
+                } else {
+                    in.readFully(chunk, 0, length);
+                }
+                if (total + length > limit) {
+                    throw new IOException("Data past the end of the file");
+                }
+                if (digest != null) {
+                    digest.update(chunk, 0, length);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (target != null && buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                total += length;
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Receives a chunk stream into {@code target} starting at {@code position}, with
+     * positioned writes, so several streams can fill one file at once. Fails if the
+     * stream would write past {@code limit}.
+     */
+    public static long receiveChunksAt(DataInput in, FileChannel target, long position, long limit) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        byte[] compressed = null;
+        Inflater inflater = null;
+        long total = 0;
+        int length;
+        try {
+            while ((length = readChunkLength(in)) != 0) {
+                if (length < 0) {
+                    if (inflater == null) {
+                        inflater = Compression.newInflater();
+                        compressed = new byte[CHUNK_SIZE];
+                    }
+                    in.readFully(compressed, 0, -length);
+                    length = Compression.inflate(inflater, compressed, -length, chunk);
+                } else {
+                    in.readFully(chunk, 0, length);
+                }
+                if (position + total + length > limit) {
+                    throw new IOException("Data past the end of the file");
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, position + total + buffer.position());
+                }
+                total += length;
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        return total;
+    }
+
+    public static void skipChunks(DataInput in) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int length;
+        while ((length = readChunkLength(in)) != 0) {
+            in.readFully(chunk, 0, Math.abs(length));
+        }
+    }
+
+    private static int readChunkLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < -CHUNK_SIZE || length > CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length: " + length);
+        }
+        return length;
+    }
+
+    public static void sendRaw(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long sent = source.transferTo(position, end - position, target);
+            if (sent <= 0 && position >= source.size()) {
+                throw new EOFException("File truncated during transfer");
+            }
+            position += sent;
+        }
+    }
+
+    /** Like {@link #sendRaw(FileChannel, long, long, WritableByteChannel)}, copying through a buffer into a stream. */
+    public static void sendRaw(FileChannel source, long position, long count, OutputStream target) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long end = position + count;
+        while (position < end) {
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(CHUNK_SIZE, end - position));
+            if (source.read(buffer, position) == -1) {
+                throw new EOFException("File truncated during transfer");
+            }
+            target.write(chunk, 0, buffer.position());
+            position += buffer.position();
+        }
+    }
+
+    /** Writes the remaining bytes of {@code source}, e.g. a cached file, with no copy into a transfer buffer for direct buffers. */
+    public static void sendRaw(ByteBuffer source, WritableByteChannel target) throws IOException {
+        while (source.hasRemaining()) {
+            target.write(source);
+        }
+    }
+
+    public static void sendRaw(ByteBuffer source, OutputStream target) throws IOException {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            target.write(chunk, 0, length);
+        }
+    }
+
+    /** Reads exactly {@code count} raw bytes into {@code target}, or discards them if it is {@code null}. */
+    public static void receiveRaw(ReadableByteChannel source, FileChannel target, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        long remaining = count;
+        while (remaining > 0) {
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            if (source.read(buffer) == -1) {
+                throw new EOFException("Connection closed during transfer");
+            }
+            buffer.flip();
+            remaining -= buffer.remaining();
+            while (buffer.hasRemaining()) {
+                if (target == null) {
+                    buffer.position(buffer.limit());
+                } else {
+                    target.write(buffer);
+                }
+            }
+        }
+    }
+
+    /** Fills {@code chunk} with {@code length} bytes from {@code offset} into the data being sent. */
+    private interface ChunkSource {
+        void read(long offset, byte[] chunk, int length) throws IOException;
+    }
+}
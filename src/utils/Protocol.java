@@ -0,0 +1,241 @@
+package utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire protocol shared by client and server.
+ * <p>
+ * A session starts with the client sending {@link #MAGIC} and {@link #VERSION};
+ * the server answers with a reply. After that every request is an opcode byte
+ * followed by its fields, and every reply starts with a status byte and a message.
+ * An upload announces its name, size and content hash first; the server either
+ * finishes it right away (the content is already stored) or answers
+ * {@link #STATUS_CONTINUE} and waits for the chunks. {@link #OP_BATCH} does the same for
+ * many items at once: one manifest, one list of the uploads the server still needs,
+ * the data for those back to back, and one reply with a result per item.
+ * Strings are an {@code int} byte length followed by UTF-8 bytes.
+ */
+public final class Protocol {
+    public static final int MAGIC = 0x464D4E47;
+    public static final byte VERSION = 7;
+    public static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+
+    public static final byte OP_LOGIN = 0x01;
+    public static final byte OP_REGISTER = 0x02;
+    public static final byte OP_EXIT = 0x03;
+    public static final byte OP_COMPRESSION = 0x04;
+    /** Admins only: the server's counters and latency tables as text. */
+    public static final byte OP_STATS = 0x05;
+    /**
+     * Takes over a session by the token a login returned, on a new connection, with no
+     * password; the reply is the same as a login's: the current folder, then the token.
+     */
+    public static final byte OP_RESUME = 0x06;
+
+    public static final byte OP_UPLOAD = 0x10;
+    public static final byte OP_DOWNLOAD = 0x11;
+    public static final byte OP_UPLOAD_RANGE = 0x12;
+    public static final byte OP_DOWNLOAD_RANGE = 0x13;
+    public static final byte OP_PARTIAL_SIZE = 0x14;
+    public static final byte OP_UPLOAD_DELTA = 0x15;
+    public static final byte OP_BATCH = 0x16;
+    /**
+     * One file over several connections: the start ops return a token, each part op
+     * (allowed before login; the token is the credential) moves one byte range, and an
+     * upload is finished with {@link #OP_UPLOAD_COMMIT} on the session that started it.
+     */
+    public static final byte OP_PARALLEL_UPLOAD = 0x17;
+    public static final byte OP_PARALLEL_DOWNLOAD = 0x18;
+    public static final byte OP_UPLOAD_PART = 0x19;
+    public static final byte OP_DOWNLOAD_PART = 0x1A;
+    public static final byte OP_UPLOAD_COMMIT = 0x1B;
+
+    public static final byte OP_MOVE_TO = 0x20;
+    public static final byte OP_BACK = 0x21;
+    public static final byte OP_SEARCH = 0x22;
+
+    public static final byte OP_CREATE_DIRECTORY = 0x30;
+    public static final byte OP_RENAME_DIRECTORY = 0x31;
+    public static final byte OP_DELETE_DIRECTORY = 0x32;
+    public static final byte OP_LIST_DIRECTORY = 0x33;
+    public static final byte OP_COPY_DIRECTORY = 0x34;
+    public static final byte OP_MOVE_DIRECTORY = 0x35;
+
+    public static final byte OP_CREATE_FILE = 0x40;
+    public static final byte OP_RENAME_FILE = 0x41;
+    public static final byte OP_DELETE_FILE = 0x42;
+    public static final byte OP_VIEW_FILE = 0x43;
+    public static final byte OP_COPY_FILE = 0x44;
+    public static final byte OP_MOVE_FILE = 0x45;
+
+    public static final byte OP_JOB_LIST = 0x50;
+    public static final byte OP_JOB_STATUS = 0x51;
+    public static final byte OP_JOB_WATCH = 0x52;
+    public static final byte OP_JOB_CANCEL = 0x53;
+
+    /**
+     * Item kinds of {@link #OP_BATCH}: {@code [byte kind]} followed by {@code [string path]}
+     * for a folder (parents included), {@code [string glob]} for files to delete, or
+     * {@code [string path][long size][hash]} for an upload.
+     */
+    public static final byte BATCH_MKDIR = 1;
+    public static final byte BATCH_DELETE = 2;
+    public static final byte BATCH_UPLOAD = 3;
+    public static final int MAX_BATCH_ITEMS = 10_000;
+
+    /** Sort orders and entry types of {@link #OP_LIST_DIRECTORY}. */
+    public static final byte LIST_SORT_NAME = 0;
+    public static final byte LIST_SORT_SIZE = 1;
+    public static final byte LIST_SORT_MODIFIED = 2;
+    public static final byte ENTRY_FILE = 0;
+    public static final byte ENTRY_DIRECTORY = 1;
+    public static final byte ENTRY_OTHER = 2;
+
+    /** Job states, as sent in job records: {@code [long id][byte state][string description][long progress][string message]}. */
+    public static final byte JOB_QUEUED = 0;
+    public static final byte JOB_RUNNING = 1;
+    public static final byte JOB_SUCCEEDED = 2;
+    public static final byte JOB_FAILED = 3;
+    public static final byte JOB_CANCELLED = 4;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_NOT_FOUND = 2;
+    public static final byte STATUS_EXISTS = 3;
+    public static final byte STATUS_DENIED = 4;
+    public static final byte STATUS_CONFIRM = 5;
+    public static final byte STATUS_INVALID = 6;
+    /** Intermediate reply: the request was accepted and the client should now send its payload. */
+    public static final byte STATUS_CONTINUE = 7;
+    /** Intermediate reply of a long operation; the message says how far it got and another reply follows. */
+    public static final byte STATUS_PROGRESS = 8;
+    /** The request was queued as a background job; its id follows as a {@code long}. */
+    public static final byte STATUS_ACCEPTED = 9;
+
+    private Protocol() {
+    }
+
+    public static boolean isFolderOp(byte opcode) {
+        return (opcode & 0xF0) == 0x30;
+    }
+
+    public static boolean isFileOp(byte opcode) {
+        return (opcode & 0xF0) == 0x40;
+    }
+
+    /** Commands that move file data (and the small requests that set such transfers up). */
+    public static boolean isTransferOp(byte opcode) {
+        return (opcode & 0xF0) == 0x10;
+    }
+
+    public static boolean isJobOp(byte opcode) {
+        return (opcode & 0xF0) == 0x50;
+    }
+
+    public static String nameOf(byte opcode) {
+        switch (opcode) {
+            case OP_LOGIN: return "login";
+            case OP_REGISTER: return "register";
+            case OP_EXIT: return "exit";
+            case OP_COMPRESSION: return "compression";
+            case OP_STATS: return "stats";
+            case OP_RESUME: return "resume";
+            case OP_UPLOAD: return "upload";
+            case OP_DOWNLOAD: return "download";
+            case OP_UPLOAD_RANGE: return "upload range";
+            case OP_DOWNLOAD_RANGE: return "download range";
+            case OP_PARTIAL_SIZE: return "partial size";
+            case OP_UPLOAD_DELTA: return "upload delta";
+            case OP_BATCH: return "batch";
+            case OP_PARALLEL_UPLOAD: return "parallel upload";
+            case OP_PARALLEL_DOWNLOAD: return "parallel download";
+            case OP_UPLOAD_PART: return "upload part";
+            case OP_DOWNLOAD_PART: return "download part";
+            case OP_UPLOAD_COMMIT: return "upload commit";
+            case OP_MOVE_TO: return "move to";
+            case OP_BACK: return "back";
+            case OP_SEARCH: return "search";
+            case OP_CREATE_DIRECTORY: return "create folder";
+            case OP_RENAME_DIRECTORY: return "rename folder";
+            case OP_DELETE_DIRECTORY: return "delete folder";
+            case OP_LIST_DIRECTORY: return "view folder";
+            case OP_COPY_DIRECTORY: return "copy folder";
+            case OP_MOVE_DIRECTORY: return "move folder";
+            case OP_CREATE_FILE: return "create file";
+            case OP_RENAME_FILE: return "rename file";
+            case OP_DELETE_FILE: return "delete file";
+            case OP_VIEW_FILE: return "view file";
+            case OP_COPY_FILE: return "copy file";
+            case OP_MOVE_FILE: return "move file";
+            case OP_JOB_LIST: return "list jobs";
+            case OP_JOB_STATUS: return "job status";
+            case OP_JOB_WATCH: return "watch job";
+            case OP_JOB_CANCEL: return "cancel job";
+            default: return "unknown(0x" + Integer.toHexString(opcode & 0xFF) + ")";
+        }
+    }
+
+    public static void writeHandshake(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    /** Returns the client's protocol version, or -1 if the stream does not start with {@link #MAGIC}. */
+    public static int readHandshake(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            return -1;
+        }
+        return in.readByte();
+    }
+
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void writeReply(DataOutput out, byte status, String message) throws IOException {
+        out.writeByte(status);
+        writeString(out, message);
+    }
+
+    public static Reply readReply(DataInput in) throws IOException {
+        byte status = in.readByte();
+        return new Reply(status, readString(in));
+    }
+
+    public static final class Reply {
+        private final byte status;
+        private final String message;
+
+        public Reply(byte status, String message) {
+            this.status = status;
+            this.message = message;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isOk() {
+            return status == STATUS_OK;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.ContentHash;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BlobStoreTest {
+    @TempDir
+    Path dir;
+    private Path users;
+    private BlobStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        users = Files.createDirectories(dir.resolve("files"));
+        store = new BlobStore(dir.resolve("blobs"), new Metrics());
+        store.load();
+    }
+
+    @Test
+    void sameContentIsStoredOnce() throws IOException {
+        Path a = upload("a.txt", "shared");
+        Path b = upload("b.txt", "shared");
+        assertEquals(1, blobCount());
+        assertTrue(Files.isSameFile(a, b));
+        assertEquals(store.hashOf(a), store.hashOf(b));
+    }
+
+    @Test
+    void blobGoesWithItsLastReference() throws IOException {
+        Path a = upload("a.txt", "shared");
+        Path b = upload("b.txt", "shared");
+        store.delete(a);
+        assertEquals(1, blobCount());
+        assertEquals("shared", Files.readString(b));
+        store.delete(b);
+        assertEquals(0, blobCount());
+    }
+
+    @Test
+    void linkExistingAddsAReferenceOnlyForKnownContent() throws IOException {
+        Path a = upload("a.txt", "shared");
+        String hash = store.hashOf(a);
+        Path b = users.resolve("b.txt");
+        assertFalse(store.linkExisting(hash, 5, b));
+        assertFalse(Files.exists(b));
+        assertTrue(store.linkExisting(hash, 6, b));
+        store.delete(a);
+        assertEquals(1, blobCount());
+        assertEquals("shared", Files.readString(b));
+    }
+
+    @Test
+    void copyAddsAReference() throws IOException {
+        Path a = upload("a.txt", "shared");
+        Path b = users.resolve("b.txt");
+        store.copy(a, b);
+        assertTrue(Files.isSameFile(a, b));
+        store.delete(a);
+        assertEquals(1, blobCount());
+        store.delete(b);
+        assertEquals(0, blobCount());
+    }
+
+    @Test
+    void detachedFileCanChangeWithoutTouchingOtherReferences() throws IOException {
+        Path a = upload("a.txt", "shared");
+        Path b = upload("b.txt", "shared");
+        store.detach(a);
+        assertFalse(Files.isSameFile(a, b));
+        assertNull(store.hashOf(a));
+        Files.writeString(a, "changed", StandardOpenOption.TRUNCATE_EXISTING);
+        assertEquals("shared", Files.readString(b));
+        assertEquals(1, blobCount());
+
+        store.detach(b);
+        assertEquals(0, blobCount());
+        assertEquals("shared", Files.readString(b));
+    }
+
+    @Test
+    void replacingAFileReleasesItsOldBlob() throws IOException {
+        upload("a.txt", "first");
+        upload("a.txt", "second");
+        assertEquals(1, blobCount());
+        assertEquals("second", Files.readString(users.resolve("a.txt")));
+    }
+
+    @Test
+    void loadCollectsBlobsNoFileRefersTo() throws IOException {
+        Path a = upload("a.txt", "orphan");
+        Files.delete(a);
+        store = new BlobStore(dir.resolve("blobs"), new Metrics());
+        store.load();
+        assertEquals(0, blobCount());
+    }
+
+    private Path upload(String name, String content) throws IOException {
+        Path temp = store.newTempFile();
+        Files.writeString(temp, content);
+        String hash = HexFormat.of().formatHex(ContentHash.of(temp));
+        Path target = users.resolve(name);
+        store.commit(temp, hash, target);
+        assertArrayEquals(content.getBytes(), Files.readAllBytes(target));
+        return target;
+    }
+
+    private long blobCount() throws IOException {
+        Path tmp = dir.resolve("blobs").resolve("tmp");
+        try (Stream<Path> walk = Files.walk(dir.resolve("blobs"))) {
+            return walk.filter(path -> Files.isRegularFile(path) && !path.startsWith(tmp)).count();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    @TempDir
+    Path root;
+    private SearchIndex index;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Files.createDirectories(root.resolve("alice/docs"));
+        Files.createDirectories(root.resolve("bob"));
+        Files.writeString(root.resolve("alice/docs/budget.txt"), "numbers for the quarterly report");
+        Files.writeString(root.resolve("alice/notes.txt"), "remember the budget meeting, budget budget");
+        Files.writeString(root.resolve("bob/budget-2024.txt"), "nothing else here");
+        Files.write(root.resolve("bob/image.bin"), new byte[] {'b', 'u', 'd', 'g', 'e', 't', 0, 0, 0});
+        index = new SearchIndex(root, 1024 * 1024);
+        index.start();
+        awaitUntil(() -> index.isReady());
+    }
+
+    @Test
+    void tokenizeLowerCasesAndDropsShortTerms() {
+        assertEquals(List.of("budget", "2024", "q3"), SearchIndex.tokenize("Budget-2024 (a) Q3"));
+    }
+
+    @Test
+    void nameHitsRankAboveContentHits() {
+        List<String> hits = names(index.search(root, "budget", 10));
+        assertEquals(3, hits.size(), hits.toString());
+        assertTrue(hits.indexOf("notes.txt") == 2, hits.toString());
+    }
+
+    @Test
+    void everyTermMustMatch() {
+        assertEquals(List.of("budget.txt"), names(index.search(root, "budget quarterly", 10)));
+    }
+
+    @Test
+    void lastTermMatchesAsPrefix() {
+        assertEquals(List.of("budget.txt"), names(index.search(root, "quart", 10)));
+        assertEquals(List.of(), names(index.search(root, "quart report", 10)).stream()
+                .filter(name -> !name.equals("budget.txt")).collect(Collectors.toList()));
+    }
+
+    @Test
+    void binaryFilesAreNotReadForContent() {
+        assertTrue(names(index.search(root, "budget", 10)).stream().noneMatch(name -> name.equals("image.bin")));
+    }
+
+    @Test
+    void scopeLimitsResultsToAFolder() {
+        List<String> hits = names(index.search(root.resolve("alice"), "budget", 10));
+        assertEquals(2, hits.size(), hits.toString());
+        assertTrue(hits.stream().noneMatch(name -> name.startsWith("budget-")), hits.toString());
+        // a sibling folder sharing the name prefix is not in scope
+        assertEquals(List.of(), index.search(root.resolve("ali"), "budget", 10));
+    }
+
+    @Test
+    void walkDropsFilesThatWentAway() throws IOException {
+        Files.delete(root.resolve("alice/notes.txt"));
+        Files.writeString(root.resolve("alice/docs/plan.txt"), "budget plan");
+        index.update(root.resolve("alice"));
+        // stale entries go once the walk is over, after the new file is in
+        awaitUntil(() -> index.search(root, "remember", 10).isEmpty());
+        List<String> hits = names(index.search(root, "budget", 10));
+        assertTrue(hits.contains("plan.txt") && !hits.contains("notes.txt"), hits.toString());
+    }
+
+    private static List<String> names(List<SearchIndex.Hit> hits) {
+        return hits.stream().map(hit -> Path.of(hit.path).getFileName().toString()).collect(Collectors.toList());
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for the index");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaSyncTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void newFileIsSentAsLiterals() throws IOException {
+        byte[] content = random(100_000, 1);
+        Result result = sync(null, content, Compression.NONE);
+        assertArrayEquals(content, result.rebuilt);
+        assertEquals(content.length, result.literals);
+        assertEquals(0, result.reused);
+    }
+
+    @Test
+    void unchangedFileSendsNoLiterals() throws IOException {
+        byte[] content = random(300_000, 2);
+        Result result = sync(content, content, Compression.NONE);
+        assertArrayEquals(content, result.rebuilt);
+        assertEquals(0, result.literals);
+        assertTrue(result.reused > 0);
+    }
+
+    @Test
+    void insertionInTheMiddleReusesTheBlocksAroundIt() throws IOException {
+        byte[] basis = random(500_000, 3);
+        byte[] inserted = random(1_000, 4);
+        byte[] content = new byte[basis.length + inserted.length];
+        System.arraycopy(basis, 0, content, 0, 200_000);
+        System.arraycopy(inserted, 0, content, 200_000, inserted.length);
+        System.arraycopy(basis, 200_000, content, 200_000 + inserted.length, basis.length - 200_000);
+
+        Result result = sync(basis, content, Compression.NONE);
+        assertArrayEquals(content, result.rebuilt);
+        assertTrue(result.literals < 2 * DeltaSync.blockSizeFor(basis.length) + inserted.length,
+                "literals: " + result.literals);
+    }
+
+    @Test
+    void shorterFileWithAPartialLastBlock() throws IOException {
+        byte[] basis = random(70_001, 5);
+        byte[] content = new byte[50_003];
+        System.arraycopy(basis, 0, content, 0, content.length);
+        Result result = sync(basis, content, Compression.NONE);
+        assertArrayEquals(content, result.rebuilt);
+    }
+
+    @Test
+    void compressedLiteralsRoundTrip() throws IOException {
+        byte[] basis = "line of text\n".repeat(20_000).getBytes();
+        byte[] content = ("changed head\n" + "line of text\n".repeat(20_000) + "new tail\n").getBytes();
+        for (byte codec : new byte[] {Compression.DEFLATE, Compression.FAST}) {
+            assertArrayEquals(content, sync(basis, content, codec).rebuilt);
+        }
+    }
+
+    @Test
+    void deltaGrowingPastTheLimitIsRejected() throws IOException {
+        byte[] content = random(10_000, 6);
+        assertThrows(IOException.class, () -> sync(null, content, Compression.NONE, content.length - 1));
+    }
+
+    private Result sync(byte[] basis, byte[] content, byte codec) throws IOException {
+        return sync(basis, content, codec, Long.MAX_VALUE);
+    }
+
+    private Result sync(byte[] basis, byte[] content, byte codec, long limit) throws IOException {
+        Path basisFile = basis == null ? null : Files.write(dir.resolve("basis"), basis);
+        Path sourceFile = Files.write(dir.resolve("source"), content);
+        Path targetFile = dir.resolve("target");
+
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        int blockSize = 0;
+        if (basisFile == null) {
+            DeltaSync.writeNoSignatures(new DataOutputStream(signatures));
+        } else {
+            try (FileChannel channel = FileChannel.open(basisFile, StandardOpenOption.READ)) {
+                blockSize = DeltaSync.writeSignatures(channel, new DataOutputStream(signatures));
+            }
+        }
+        DeltaSync.Signatures parsed = DeltaSync.readSignatures(in(signatures));
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        Result result = new Result();
+        try (FileChannel source = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+            result.literals = DeltaSync.writeDelta(source, parsed, new DataOutputStream(delta), codec);
+        }
+
+        MessageDigest digest = ContentHash.newDigest();
+        try (FileChannel basisChannel = basisFile == null ? null : FileChannel.open(basisFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(targetFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            result.reused = DeltaSync.applyDelta(in(delta), basisChannel, blockSize, target, digest, limit);
+        }
+        result.rebuilt = Files.readAllBytes(targetFile);
+        assertArrayEquals(ContentHash.of(sourceFile), digest.digest());
+        return result;
+    }
+
+    private static DataInputStream in(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static final class Result {
+        byte[] rebuilt;
+        long literals;
+        long reused;
+    }
+}